@@ -24,17 +24,20 @@ application {
 
 
 repositories {
-    maven {
-        url = uri("https://repo.opencollab.dev/main")
-    }
     mavenCentral()
 }
 
 dependencies {
-    implementation("com.github.steveice10", "opennbt", "1.5-SNAPSHOT")
-
     implementation("com.fasterxml.jackson.core", "jackson-core", "2.14.1")
-    implementation("com.fasterxml.jackson.core", "jackson-databind", "2.14.1")
+
+    testImplementation(platform("org.junit:junit-bom:5.10.1"))
+    testImplementation("org.junit.jupiter", "junit-jupiter")
+    testImplementation("com.fasterxml.jackson.core", "jackson-databind", "2.14.1")
+    testRuntimeOnly("org.junit.platform", "junit-platform-launcher")
+}
+
+tasks.test {
+    useJUnitPlatform()
 }
 
 publishing {
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single-pass scanner for quoted, padded base64 runs, the candidates for player profiles.
+ * <p>
+ * It finds the same candidates as the pattern {@code \\?["']((?:[A-Za-z0-9+/]{4})*(?:[A-Za-z0-9+/]{2}==|[A-Za-z0-9+/]{3}=))\\?["']}
+ * but never backtracks and reports the offsets of each candidate instead of creating strings. It can scan either a
+ * {@link CharSequence} or raw bytes; since every character it looks for is ASCII, scanning UTF-8 or modified UTF-8
+ * bytes gives the same candidates as scanning the decoded string.
+ */
+final class Base64Scanner {
+    private CharSequence chars;
+    private byte[] bytes;
+    private int position;
+    private int limit;
+    private int start;
+    private int end;
+
+    /**
+     * Scan a string
+     * @param chars The string to scan
+     * @return This scanner
+     */
+    Base64Scanner reset(CharSequence chars) {
+        this.chars = chars;
+        this.bytes = null;
+        this.position = 0;
+        this.limit = chars.length();
+        return this;
+    }
+
+    /**
+     * Scan a range of bytes
+     * @param bytes The array to scan
+     * @param offset The start of the range
+     * @param length The length of the range
+     * @return This scanner
+     */
+    Base64Scanner reset(byte[] bytes, int offset, int length) {
+        this.chars = null;
+        this.bytes = bytes;
+        this.position = offset;
+        this.limit = offset + length;
+        return this;
+    }
+
+    /**
+     * Find the next candidate after the previous one
+     * @return Whether a candidate was found
+     */
+    boolean find() {
+        for (int p = position; p < limit; p++) {
+            int c = at(p);
+            int content;
+            if (isQuote(c)) {
+                content = p + 1;
+            } else if (c == '\\' && p + 1 < limit && isQuote(at(p + 1))) {
+                content = p + 2;
+            } else {
+                continue;
+            }
+
+            // The group can't skip base64 characters, so it always spans the whole run after the quote
+            int runEnd = content;
+            while (runEnd < limit && isBase64(at(runEnd))) {
+                runEnd++;
+            }
+            int padding = switch ((runEnd - content) % 4) {
+                case 2 -> 2;
+                case 3 -> 1;
+                default -> 0;
+            };
+            if (padding == 0 || runEnd + padding > limit) {
+                continue;
+            }
+            int groupEnd = runEnd;
+            while (groupEnd < runEnd + padding && at(groupEnd) == '=') {
+                groupEnd++;
+            }
+            if (groupEnd != runEnd + padding) {
+                continue;
+            }
+
+            int matchEnd;
+            if (groupEnd < limit && isQuote(at(groupEnd))) {
+                matchEnd = groupEnd + 1;
+            } else if (groupEnd + 1 < limit && at(groupEnd) == '\\' && isQuote(at(groupEnd + 1))) {
+                matchEnd = groupEnd + 2;
+            } else {
+                continue;
+            }
+
+            start = content;
+            end = groupEnd;
+            position = matchEnd;
+            return true;
+        }
+        position = limit;
+        return false;
+    }
+
+    /**
+     * @return The offset of the first character of the last candidate found
+     */
+    int start() {
+        return start;
+    }
+
+    /**
+     * @return The offset after the last character of the last candidate found
+     */
+    int end() {
+        return end;
+    }
+
+    /**
+     * @return The last candidate found
+     */
+    String candidate() {
+        if (chars != null) {
+            return chars.subSequence(start, end).toString();
+        }
+        return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private int at(int index) {
+        return chars != null ? chars.charAt(index) : bytes[index];
+    }
+
+    private static boolean isQuote(int c) {
+        return c == '"' || c == '\'';
+    }
+
+    static boolean isBase64(int c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '+' || c == '/';
+    }
+}
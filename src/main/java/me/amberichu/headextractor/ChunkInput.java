@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * A reusable {@link DataInput} over a region of a byte array, used to read decompressed chunks without wrapping them
+ * in a new stream for every chunk.
+ */
+final class ChunkInput implements DataInput {
+    private byte[] data = new byte[0];
+    private int position;
+    private int limit;
+
+    /**
+     * Point this input at new data
+     * @param data The backing array
+     * @param length The number of readable bytes at the start of the array
+     */
+    void reset(byte[] data, int length) {
+        this.data = data;
+        this.position = 0;
+        this.limit = length;
+    }
+
+    /**
+     * @return The backing array
+     */
+    byte[] data() {
+        return data;
+    }
+
+    /**
+     * @return The number of readable bytes at the start of the backing array
+     */
+    int length() {
+        return limit;
+    }
+
+    /**
+     * @return The offset of the next byte to read
+     */
+    int position() {
+        return position;
+    }
+
+    /**
+     * Move to an earlier or later offset, to read part of the data again
+     * @param position The offset of the next byte to read, at most {@link #length()}
+     */
+    void seek(int position) {
+        if (position < 0 || position > limit) {
+            throw new IndexOutOfBoundsException("Position " + position + " out of bounds for length " + limit);
+        }
+        this.position = position;
+    }
+
+    /**
+     * Skip over bytes that the caller reads directly from {@link #data()}
+     * @param length The number of bytes to skip
+     * @return The offset of the first skipped byte
+     * @throws EOFException If fewer bytes remain
+     */
+    int advance(int length) throws EOFException {
+        return require(length);
+    }
+
+    private int require(int length) throws EOFException {
+        if (length > limit - position) {
+            throw new EOFException();
+        }
+        int start = position;
+        position += length;
+        return start;
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        System.arraycopy(data, require(len), b, off, len);
+    }
+
+    @Override
+    public int skipBytes(int n) {
+        int skipped = Math.max(0, Math.min(n, limit - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        return data[require(1)];
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return data[require(1)] & 0xFF;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        return (short) readUnsignedShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        int i = require(2);
+        return ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return (char) readUnsignedShort();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        int i = require(4);
+        return ((data[i] & 0xFF) << 24) | ((data[i + 1] & 0xFF) << 16) | ((data[i + 2] & 0xFF) << 8)
+                | (data[i + 3] & 0xFF);
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    /**
+     * Read a line the way {@link DataInputStream#readLine()} does: each byte becomes the char with the same low byte,
+     * and a line ends at {@code \n}, {@code \r} or {@code \r\n}, which is consumed but not returned
+     * @return The line, or null at the end of the input
+     */
+    @Override
+    public String readLine() {
+        if (position == limit) {
+            return null;
+        }
+        int start = position;
+        int end = start;
+        while (end < limit && data[end] != '\n' && data[end] != '\r') {
+            end++;
+        }
+        position = end;
+        if (position < limit && data[position++] == '\r' && position < limit && data[position] == '\n') {
+            position++;
+        }
+        char[] line = new char[end - start];
+        for (int i = 0; i < line.length; i++) {
+            line[i] = (char) (data[start + i] & 0xFF);
+        }
+        return new String(line);
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+/**
+ * Byte-level check that rules out decompressed chunks which can't contain a player profile, before any NBT parsing.
+ * <p>
+ * A profile is only reported from a list named {@code textures} or {@code properties}, or from a string containing a
+ * quoted, padded base64 run. Tag names are stored as plain bytes and such a run always ends in base64 characters,
+ * padding and a quote (optionally escaped), so a chunk with none of these byte sequences can be skipped without
+ * changing the result.
+ * <p>
+ * The same reasoning is applied to individual strings before they are matched against the base64 pattern.
+ */
+final class ChunkPrefilter {
+    private static final byte[] TEXTURES = {'t', 'e', 'x', 't', 'u', 'r', 'e', 's'};
+    private static final byte[] PROPERTIES = {'p', 'r', 'o', 'p', 'e', 'r', 't', 'i', 'e', 's'};
+
+    // The shortest valid profile, {"textures":{"SKIN":{"url":""}}}, is 44 base64 characters plus two quotes
+    static final int MIN_CANDIDATE_LENGTH = 46;
+
+    private ChunkPrefilter() {
+    }
+
+    /**
+     * @param data The decompressed chunk
+     * @param length The number of valid bytes at the start of data
+     * @return Whether the chunk may contain a player profile
+     */
+    static boolean mayContainHeads(byte[] data, int length) {
+        for (int i = 0; i < length; i++) {
+            switch (data[i]) {
+                case '=' -> {
+                    if (isPaddedEnd(data, 0, length, i)) {
+                        return true;
+                    }
+                }
+                case 't' -> {
+                    if (regionMatches(data, length, i, TEXTURES)) {
+                        return true;
+                    }
+                }
+                case 'p' -> {
+                    if (regionMatches(data, length, i, PROPERTIES)) {
+                        return true;
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param string A string tag value or data pack file
+     * @return Whether the string may contain a quoted base64 run long enough to be a player profile
+     */
+    static boolean mayContainCandidate(CharSequence string) {
+        int length = string.length();
+        if (length < MIN_CANDIDATE_LENGTH) {
+            return false;
+        }
+        for (int i = 3; i < length - 1; i++) {
+            if (string.charAt(i) == '=' && isPaddedEnd(string, length, i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param data The array holding the string, as UTF-8 or modified UTF-8
+     * @param offset The start of the string
+     * @param length The length of the string in bytes
+     * @return Whether the string may contain a quoted base64 run long enough to be a player profile
+     */
+    static boolean mayContainCandidate(byte[] data, int offset, int length) {
+        if (length < MIN_CANDIDATE_LENGTH) {
+            return false;
+        }
+        int end = offset + length;
+        for (int i = offset + 3; i < end - 1; i++) {
+            if (data[i] == '=' && isPaddedEnd(data, offset, end, i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether the padding character at the given offset ends a quoted base64 run, which requires it to be
+     * preceded by either three base64 characters or two base64 characters and another padding character.
+     */
+    private static boolean isPaddedEnd(byte[] data, int from, int to, int offset) {
+        int next = offset + 1 < to && data[offset + 1] == '\\' ? offset + 2 : offset + 1;
+        if (next >= to || (data[next] != '"' && data[next] != '\'')) {
+            return false;
+        }
+        if (offset - from < 3) {
+            return false;
+        }
+        int end = data[offset - 1] == '=' ? offset - 1 : offset;
+        for (int i = offset - 3; i < end; i++) {
+            if (!Base64Scanner.isBase64(data[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPaddedEnd(CharSequence string, int length, int offset) {
+        int next = offset + 1 < length && string.charAt(offset + 1) == '\\' ? offset + 2 : offset + 1;
+        if (next >= length || (string.charAt(next) != '"' && string.charAt(next) != '\'')) {
+            return false;
+        }
+        int end = string.charAt(offset - 1) == '=' ? offset - 1 : offset;
+        for (int i = offset - 3; i < end; i++) {
+            if (!Base64Scanner.isBase64(string.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean regionMatches(byte[] data, int length, int offset, byte[] expected) {
+        if (length - offset < expected.length) {
+            return false;
+        }
+        for (int i = 1; i < expected.length; i++) {
+            if (data[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Compares LZ4 and zlib chunk decoding on the same corpus.
+ * <p>
+ * The chunks of the given worlds are decompressed once, then recompressed with zlib at its default level and with LZ4
+ * in the block stream format Minecraft writes. Each codec is then timed decoding every chunk, alone and followed by a
+ * scan, through the same {@link DecompressionContext} the extraction uses.
+ */
+final class CodecBenchmark {
+    private static final long MAX_CORPUS_SIZE = 256L * 1024 * 1024;
+    private static final int LZ4_BLOCK_SIZE = 64 * 1024;
+    private static final int LZ4_HASH_BITS = 14;
+    private static final int LZ4_LAST_LITERALS = 5;
+    private static final int LZ4_MATCH_SEARCH_LIMIT = 12;
+
+    private static final String[] CODECS = {"zlib", "lz4"};
+    private static final int[] COMPRESSION_TYPES = {2, 4};
+
+    private CodecBenchmark() {
+    }
+
+    /**
+     * @param worldPaths The worlds whose chunks form the corpus
+     * @param options The options selecting the region files and the scan mode
+     * @param iterations The number of timed passes over the corpus per codec
+     * @param out Receives one summary line per codec
+     * @throws IOException If an I/O error occurs
+     */
+    static void run(Set<Path> worldPaths, ScanOptions options, int iterations, PrintStream out) throws IOException {
+        try (DecompressionContext.Pool pool = new DecompressionContext.Pool(1);
+             DecompressionContext context = pool.acquire()) {
+            List<byte[]> corpus = gatherCorpus(worldPaths, options, context);
+            long corpusSize = corpus.stream().mapToLong(chunk -> chunk.length).sum();
+            out.printf(Locale.ROOT, "Corpus: %d chunks, %d bytes%n", corpus.size(), corpusSize);
+            if (corpus.isEmpty()) {
+                return;
+            }
+
+            List<List<ByteBuffer>> encoded = List.of(deflate(corpus), encodeLz4(corpus));
+            verify(corpus, encoded.get(1), context, COMPRESSION_TYPES[1]);
+
+            for (int codec = 0; codec < CODECS.length; codec++) {
+                List<ByteBuffer> payloads = encoded.get(codec);
+                int compressionType = COMPRESSION_TYPES[codec];
+                long compressedSize = payloads.stream().mapToLong(ByteBuffer::remaining).sum();
+
+                // Warm up the decoder before timing it
+                decode(payloads, compressionType, context, null);
+                long[] decodeNanos = new long[iterations];
+                long[] scanNanos = new long[iterations];
+                for (int i = 0; i < iterations; i++) {
+                    decodeNanos[i] = decode(payloads, compressionType, context, null);
+                    scanNanos[i] = decode(payloads, compressionType, context, new NBTScanner(options, head -> {
+                    }));
+                }
+                Arrays.sort(decodeNanos);
+                Arrays.sort(scanNanos);
+                long median = decodeNanos[iterations / 2];
+                out.printf(Locale.ROOT, "%-4s %10d bytes (%5.1f%%), decode best %8.1f ms, median %8.1f ms, "
+                                + "%8.1f MiB/s, decode and scan median %8.1f ms%n",
+                        CODECS[codec], compressedSize, 100.0 * compressedSize / corpusSize, decodeNanos[0] / 1e6,
+                        median / 1e6, corpusSize / (1024.0 * 1024.0) / (median / 1e9),
+                        scanNanos[iterations / 2] / 1e6);
+            }
+        }
+    }
+
+    private static List<byte[]> gatherCorpus(Set<Path> worldPaths, ScanOptions options, DecompressionContext context)
+            throws IOException {
+        List<byte[]> corpus = new ArrayList<>();
+        long[] corpusSize = {0};
+        FileSource.Factory sources = new FileSource.Factory(IOMode.READ, 0, new ExtractionStatistics());
+        for (Path worldPath : worldPaths) {
+            for (Path mcaPath : HeadExtractor.gatherMCA(worldPath, options.includeEntities(), options.includeRegion())) {
+                if (corpusSize[0] >= MAX_CORPUS_SIZE) {
+                    return corpus;
+                }
+                try (FileSource source = sources.open(mcaPath)) {
+                    RegionFile.Range range = new RegionFile.Range(mcaPath, 0, Long.MAX_VALUE, Files.size(mcaPath));
+                    RegionFile.read(source, range, (index, payload) -> {
+                        byte compressionType = payload.get();
+                        if (ExternalChunk.isExternal(compressionType)) {
+                            return;
+                        }
+                        ChunkInput chunk = context.decompress(payload, compressionType);
+                        corpus.add(Arrays.copyOf(chunk.data(), chunk.length()));
+                        corpusSize[0] += chunk.length();
+                    }, (index, e) -> System.err.println("Skipped chunk " + index + " of " + mcaPath
+                            + " due to exception: " + e));
+                } catch (IOException e) {
+                    System.err.println("Unable to fully read " + mcaPath + " due to exception: " + e);
+                }
+            }
+        }
+        return corpus;
+    }
+
+    private static long decode(List<ByteBuffer> payloads, int compressionType, DecompressionContext context,
+                               NBTScanner scanner) throws IOException {
+        long start = System.nanoTime();
+        for (ByteBuffer payload : payloads) {
+            ChunkInput chunk = context.decompress(payload, compressionType);
+            if (scanner != null) {
+                scanner.scan(chunk);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void verify(List<byte[]> corpus, List<ByteBuffer> payloads, DecompressionContext context,
+                               int compressionType) throws IOException {
+        for (int i = 0; i < corpus.size(); i++) {
+            byte[] expected = corpus.get(i);
+            ChunkInput chunk = context.decompress(payloads.get(i), compressionType);
+            if (!Arrays.equals(expected, 0, expected.length, chunk.data(), 0, chunk.length())) {
+                throw new IllegalStateException("Compression type " + compressionType + " didn't round trip chunk "
+                        + i);
+            }
+        }
+    }
+
+    private static List<ByteBuffer> deflate(List<byte[]> corpus) {
+        Deflater deflater = new Deflater();
+        try {
+            List<ByteBuffer> payloads = new ArrayList<>(corpus.size());
+            byte[] buffer = new byte[64 * 1024];
+            for (byte[] chunk : corpus) {
+                deflater.reset();
+                deflater.setInput(chunk);
+                deflater.finish();
+                int length = 0;
+                while (!deflater.finished()) {
+                    if (length == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    }
+                    length += deflater.deflate(buffer, length, buffer.length - length);
+                }
+                payloads.add(ByteBuffer.wrap(Arrays.copyOf(buffer, length)));
+            }
+            return payloads;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Compress each chunk in the format of lz4-java's {@code LZ4BlockOutputStream} with a 64 KiB block size, as
+     * Minecraft does. Checksums are left zero since the decoder doesn't verify them.
+     */
+    private static List<ByteBuffer> encodeLz4(List<byte[]> corpus) {
+        List<ByteBuffer> payloads = new ArrayList<>(corpus.size());
+        int[] table = new int[1 << LZ4_HASH_BITS];
+        byte[] block = new byte[LZ4_BLOCK_SIZE + LZ4_BLOCK_SIZE / 255 + 16];
+        int level = Integer.numberOfTrailingZeros(LZ4_BLOCK_SIZE) - 10;
+        for (byte[] chunk : corpus) {
+            ByteBuffer payload = ByteBuffer.allocate(chunk.length + chunk.length / 255 + 64
+                    + 21 * (chunk.length / LZ4_BLOCK_SIZE + 2)).order(ByteOrder.LITTLE_ENDIAN);
+            for (int offset = 0; offset < chunk.length; offset += LZ4_BLOCK_SIZE) {
+                int length = Math.min(LZ4_BLOCK_SIZE, chunk.length - offset);
+                int compressedLength = compressLz4Block(chunk, offset, length, block, table);
+                boolean raw = compressedLength >= length;
+                payload.put(DecompressionContext.LZ4_BLOCK_MAGIC)
+                        .put((byte) ((raw ? 0x10 : 0x20) | level))
+                        .putInt(raw ? length : compressedLength).putInt(length).putInt(0);
+                if (raw) {
+                    payload.put(chunk, offset, length);
+                } else {
+                    payload.put(block, 0, compressedLength);
+                }
+            }
+            payload.put(DecompressionContext.LZ4_BLOCK_MAGIC).put((byte) (0x10 | level))
+                    .putInt(0).putInt(0).putInt(0);
+            payloads.add(ByteBuffer.wrap(Arrays.copyOf(payload.array(), payload.position())));
+        }
+        return payloads;
+    }
+
+    /**
+     * Greedy single-probe LZ4 block compressor, enough to produce realistic payloads for the decoder
+     * @return The compressed length
+     */
+    private static int compressLz4Block(byte[] src, int offset, int length, byte[] dst, int[] table) {
+        Arrays.fill(table, -1);
+        int end = offset + length;
+        int matchLimit = end - LZ4_LAST_LITERALS;
+        int searchLimit = end - LZ4_MATCH_SEARCH_LIMIT;
+        int ip = offset;
+        int anchor = offset;
+        int dp = 0;
+        while (ip < searchLimit) {
+            int sequence = readInt(src, ip);
+            int hash = (sequence * -1640531535) >>> (32 - LZ4_HASH_BITS);
+            int ref = table[hash];
+            table[hash] = ip;
+            if (ref < 0 || ip - ref > 0xFFFF || readInt(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+            int match = 4;
+            while (ip + match < matchLimit && src[ref + match] == src[ip + match]) {
+                match++;
+            }
+            int token = dp;
+            dp = writeLz4Literals(src, anchor, ip - anchor, dst, dp);
+            dst[dp++] = (byte) (ip - ref);
+            dst[dp++] = (byte) ((ip - ref) >>> 8);
+            dst[token] |= (byte) Math.min(match - 4, 15);
+            if (match - 4 >= 15) {
+                dp = writeLz4Length(dst, dp, match - 4 - 15);
+            }
+            ip += match;
+            anchor = ip;
+        }
+        return writeLz4Literals(src, anchor, end - anchor, dst, dp);
+    }
+
+    /**
+     * Write a token holding the literal count, followed by the literals
+     * @return The position after the literals
+     */
+    private static int writeLz4Literals(byte[] src, int literalStart, int literals, byte[] dst, int dp) {
+        dst[dp++] = (byte) (Math.min(literals, 15) << 4);
+        if (literals >= 15) {
+            dp = writeLz4Length(dst, dp, literals - 15);
+        }
+        System.arraycopy(src, literalStart, dst, dp, literals);
+        return dp + literals;
+    }
+
+    private static int writeLz4Length(byte[] dst, int dp, int length) {
+        while (length >= 255) {
+            dst[dp++] = (byte) 255;
+            length -= 255;
+        }
+        dst[dp++] = (byte) length;
+        return dp;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8 | (data[offset + 2] & 0xFF) << 16
+                | (data[offset + 3] & 0xFF) << 24;
+    }
+}
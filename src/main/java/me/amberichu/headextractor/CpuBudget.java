@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Caps the CPU time used by the workers of an extraction to a number of cores.
+ * <p>
+ * Workers report after each chunk or file. The CPU time they used since their previous report is taken from a shared
+ * {@link Throttle} that refills at the budgeted number of cores, and a worker that overdraws it pauses until the budget
+ * recovers. Where the JVM can't measure thread CPU time, wall time is used instead, which only makes the pauses longer.
+ */
+final class CpuBudget {
+    /**
+     * A budget that never pauses
+     */
+    static final CpuBudget UNLIMITED = new CpuBudget();
+
+    // Let up to 100 ms of CPU time per budgeted core run before pausing
+    private static final long BURST_NANOS = 100_000_000L;
+
+    private final Throttle throttle;
+    private final ThreadLocal<long[]> lastCpuNanos = ThreadLocal.withInitial(() -> new long[]{cpuNanos()});
+
+    private CpuBudget() {
+        this.throttle = null;
+    }
+
+    /**
+     * @param cores The number of cores the workers may keep busy together
+     * @param statistics Records the budget and the time spent paused
+     */
+    CpuBudget(double cores, ExtractionStatistics statistics) {
+        this.throttle = new Throttle(cores * 1e9, cores * BURST_NANOS, statistics::cpuPaused);
+        statistics.cpuBudget(cores);
+    }
+
+    /**
+     * @return Whether this budget can pause workers
+     */
+    boolean limited() {
+        return throttle != null;
+    }
+
+    /**
+     * Charge the CPU time the current thread used since its previous call, pausing if the budget is exceeded
+     * @throws InterruptedIOException If the thread is interrupted while paused
+     */
+    void pace() throws InterruptedIOException {
+        if (throttle == null) {
+            return;
+        }
+        long[] last = lastCpuNanos.get();
+        long now = cpuNanos();
+        long used = now - last[0];
+        last[0] = now;
+        if (used > 0) {
+            throttle.acquire(used);
+        }
+        // The pause itself uses no CPU time, but wall time must not be charged for it
+        last[0] = cpuNanos();
+    }
+
+    private static long cpuNanos() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled()) {
+            return threads.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+}
@@ -0,0 +1,564 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Reusable decompression state for a single worker.
+ * <p>
+ * Each context owns one zlib {@link Inflater}, one raw {@link Inflater} for GZip payloads, and an output buffer that
+ * grows to fit the largest chunk seen. Payloads are inflated straight from the buffer the region file was read into,
+ * so no intermediate copy of the compressed bytes is made. The inflaters are ended when the owning {@link Pool} is
+ * closed, so native zlib memory is never left for finalization.
+ * <p>
+ * LZ4 payloads are decoded in Java into the same output buffer. Minecraft writes them in the block stream format of
+ * lz4-java, and the standard LZ4 frame format is accepted as well. Checksums are not verified, the NBT scanner already
+ * rejects truncated or malformed data.
+ */
+final class DecompressionContext implements AutoCloseable {
+    private static final int INITIAL_OUTPUT_SIZE = 64 * 1024;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    static final byte[] LZ4_BLOCK_MAGIC = {'L', 'Z', '4', 'B', 'l', 'o', 'c', 'k'};
+    private static final int LZ4_BLOCK_HEADER_LENGTH = LZ4_BLOCK_MAGIC.length + 13;
+    private static final int LZ4_METHOD_RAW = 0x10;
+    private static final int LZ4_METHOD_LZ4 = 0x20;
+    private static final int LZ4_FRAME_MAGIC = 0x184D2204;
+    private static final int LZ4_SKIPPABLE_MAGIC = 0x184D2A50;
+    private static final int LZ4_MIN_MATCH = 4;
+
+    private final Pool pool;
+    private final Inflater zlibInflater = new Inflater();
+    private final Inflater gzipInflater = new Inflater(true);
+    private final ChunkInput input = new ChunkInput();
+    private byte[] output = new byte[INITIAL_OUTPUT_SIZE];
+    private byte[] compressed;
+
+    private DecompressionContext(Pool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Decompress a chunk payload into this context's output buffer
+     * @param payload The compressed payload, from its position to its limit. The position is not modified. It is fully
+     *                consumed before this returns and no reference to it is kept, so it may be a slice of a mapping
+     *                that is closed right after.
+     * @param compressionType The region file compression type
+     * @return The decompressed payload, valid until the next call or until this context is released
+     * @throws IOException If the payload is malformed or truncated, or the compression type is unknown
+     */
+    ChunkInput decompress(ByteBuffer payload, int compressionType) throws IOException {
+        int length = switch (compressionType) {
+            case 1 -> {
+                ByteBuffer deflated = payload.slice();
+                skipGzipHeader(deflated);
+                yield inflate(gzipInflater, deflated);
+            }
+            case 2 -> inflate(zlibInflater, payload.slice());
+            case 3 -> {
+                int remaining = payload.remaining();
+                ensureOutputCapacity(remaining);
+                payload.get(payload.position(), output, 0, remaining);
+                yield remaining;
+            }
+            case 4 -> decodeLz4(payload);
+            default -> throw unknownCompressionType(compressionType);
+        };
+        input.reset(output, length);
+        return input;
+    }
+
+    /**
+     * Decompress an external chunk payload as a stream, so that it is never held whole in memory. LZ4 payloads are
+     * the exception and are decoded into the output buffer.
+     * @param compressed The compressed payload, owned by the caller
+     * @param compressionType The region file compression type, without the external flag
+     * @return The decompressed payload, valid until the stream is closed or this context is used again
+     * @throws IOException If an I/O error occurs, or the compression type is unknown
+     */
+    DataInput stream(InputStream compressed, int compressionType) throws IOException {
+        if (compressionType == 4) {
+            return decompress(ByteBuffer.wrap(compressed.readAllBytes()), compressionType);
+        }
+        InputStream decompressed = switch (compressionType) {
+            case 1 -> {
+                // Parse the header from the first window and push the deflated bytes after it back
+                PushbackInputStream in = new PushbackInputStream(compressed, STREAM_BUFFER_SIZE);
+                byte[] head = in.readNBytes(STREAM_BUFFER_SIZE);
+                ByteBuffer deflated = ByteBuffer.wrap(head);
+                skipGzipHeader(deflated);
+                in.unread(head, deflated.position(), deflated.remaining());
+                gzipInflater.reset();
+                yield new InflaterInputStream(in, gzipInflater, STREAM_BUFFER_SIZE);
+            }
+            case 2 -> {
+                zlibInflater.reset();
+                yield new InflaterInputStream(compressed, zlibInflater, STREAM_BUFFER_SIZE);
+            }
+            case 3 -> compressed;
+            default -> throw unknownCompressionType(compressionType);
+        };
+        return new DataInputStream(new BufferedInputStream(decompressed, STREAM_BUFFER_SIZE));
+    }
+
+    /**
+     * Return this context to its pool
+     */
+    @Override
+    public void close() {
+        pool.release(this);
+    }
+
+    private int inflate(Inflater inflater, ByteBuffer deflated) throws IOException {
+        inflater.reset();
+        inflater.setInput(deflated);
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == output.length) {
+                    ensureOutputCapacity(output.length * 2);
+                }
+                int inflated = inflater.inflate(output, length, output.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("Unexpected end of compressed chunk");
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        } finally {
+            // The inflater keeps its input until it is reset, which must not outlive a mapped payload
+            inflater.reset();
+        }
+        return length;
+    }
+
+    private int decodeLz4(ByteBuffer payload) throws IOException {
+        // Decode from an array, mapped and direct buffers are copied once into a reused scratch array
+        int length = payload.remaining();
+        byte[] src;
+        int offset;
+        if (payload.hasArray()) {
+            src = payload.array();
+            offset = payload.arrayOffset() + payload.position();
+        } else {
+            if (compressed == null || compressed.length < length) {
+                compressed = new byte[Math.max(length, INITIAL_OUTPUT_SIZE)];
+            }
+            payload.get(payload.position(), compressed, 0, length);
+            src = compressed;
+            offset = 0;
+        }
+
+        int end = offset + length;
+        if (length >= 4 && isLz4Frame(readIntLE(src, offset))) {
+            return decodeLz4Frames(src, offset, end);
+        }
+        if (length >= LZ4_BLOCK_MAGIC.length
+                && Arrays.equals(src, offset, offset + LZ4_BLOCK_MAGIC.length, LZ4_BLOCK_MAGIC, 0, LZ4_BLOCK_MAGIC.length)) {
+            return decodeLz4BlockStream(src, offset, end);
+        }
+        throw new IOException("Unknown LZ4 format");
+    }
+
+    /**
+     * Decode the format written by lz4-java's {@code LZ4BlockOutputStream}. Each block has a header holding the magic,
+     * a method and block size token, the compressed and decompressed lengths and a checksum. An empty block ends the
+     * stream and must be present.
+     */
+    private int decodeLz4BlockStream(byte[] src, int sp, int end) throws IOException {
+        int dp = 0;
+        while (true) {
+            if (sp == end) {
+                throw new EOFException("Missing LZ4 end block");
+            }
+            if (end - sp < LZ4_BLOCK_HEADER_LENGTH) {
+                throw new EOFException("Truncated LZ4 block header");
+            }
+            if (!Arrays.equals(src, sp, sp + LZ4_BLOCK_MAGIC.length, LZ4_BLOCK_MAGIC, 0, LZ4_BLOCK_MAGIC.length)) {
+                throw new IOException("Malformed LZ4 block magic");
+            }
+            int token = src[sp + 8] & 0xFF;
+            int method = token & 0xF0;
+            int maxBlockSize = 1 << (10 + (token & 0x0F));
+            int compressedLength = readIntLE(src, sp + 9);
+            int decompressedLength = readIntLE(src, sp + 13);
+            sp += LZ4_BLOCK_HEADER_LENGTH;
+
+            if (decompressedLength == 0 && compressedLength == 0 && method == LZ4_METHOD_RAW) {
+                return dp;
+            }
+            if (decompressedLength < 0 || decompressedLength > maxBlockSize || compressedLength < 0
+                    || (method == LZ4_METHOD_RAW && compressedLength != decompressedLength)
+                    || (method != LZ4_METHOD_RAW && method != LZ4_METHOD_LZ4)) {
+                throw new IOException("Malformed LZ4 block header");
+            }
+            if (compressedLength > end - sp) {
+                throw new EOFException("Truncated LZ4 block");
+            }
+            ensureOutputCapacity(dp + decompressedLength);
+            if (method == LZ4_METHOD_RAW) {
+                System.arraycopy(src, sp, output, dp, decompressedLength);
+            } else if (decodeLz4Block(src, sp, sp + compressedLength, dp, dp + decompressedLength, dp)
+                    != dp + decompressedLength) {
+                throw new IOException("LZ4 block decompressed to the wrong length");
+            }
+            sp += compressedLength;
+            dp += decompressedLength;
+        }
+    }
+
+    /**
+     * Decode one or more concatenated LZ4 frames, skipping skippable frames
+     */
+    private int decodeLz4Frames(byte[] src, int sp, int end) throws IOException {
+        int dp = 0;
+        while (sp < end) {
+            if (end - sp < 8) {
+                throw new EOFException("Truncated LZ4 frame header");
+            }
+            int magic = readIntLE(src, sp);
+            if ((magic & 0xFFFFFFF0) == LZ4_SKIPPABLE_MAGIC) {
+                int skipped = readIntLE(src, sp + 4);
+                if (skipped < 0 || skipped > end - sp - 8) {
+                    throw new EOFException("Truncated LZ4 skippable frame");
+                }
+                sp += 8 + skipped;
+                continue;
+            }
+            if (magic != LZ4_FRAME_MAGIC) {
+                throw new IOException("Malformed LZ4 frame magic");
+            }
+            int flags = src[sp + 4] & 0xFF;
+            int blockMaxSizeId = (src[sp + 5] >> 4) & 0x07;
+            if ((flags & 0xC0) != 0x40 || (flags & 0x03) != 0 || blockMaxSizeId < 4) {
+                throw new IOException("Unsupported LZ4 frame descriptor");
+            }
+            boolean independent = (flags & 0x20) != 0;
+            boolean blockChecksum = (flags & 0x10) != 0;
+            boolean contentSize = (flags & 0x08) != 0;
+            boolean contentChecksum = (flags & 0x04) != 0;
+            int maxBlockSize = 1 << (2 * blockMaxSizeId + 8);
+            int headerLength = 7 + (contentSize ? 8 : 0); // Magic, FLG, BD, content size and the header checksum
+            if (end - sp < headerLength) {
+                throw new EOFException("Truncated LZ4 frame header");
+            }
+            long declaredSize = contentSize ? readLongLE(src, sp + 6) : -1;
+            sp += headerLength;
+
+            int frameStart = dp;
+            while (true) {
+                if (end - sp < 4) {
+                    throw new EOFException("Truncated LZ4 frame");
+                }
+                int blockSize = readIntLE(src, sp);
+                sp += 4;
+                if (blockSize == 0) {
+                    break;
+                }
+                boolean uncompressed = blockSize < 0;
+                blockSize &= 0x7FFFFFFF;
+                if (blockSize > maxBlockSize || blockSize > end - sp) {
+                    throw new EOFException("Truncated LZ4 frame block");
+                }
+                if (uncompressed) {
+                    ensureOutputCapacity(dp + blockSize);
+                    System.arraycopy(src, sp, output, dp, blockSize);
+                    dp += blockSize;
+                } else {
+                    ensureOutputCapacity(dp + maxBlockSize);
+                    // Linked blocks may match into the output of earlier blocks of the frame
+                    dp = decodeLz4Block(src, sp, sp + blockSize, dp, dp + maxBlockSize, independent ? dp : frameStart);
+                }
+                sp += blockSize;
+                if (blockChecksum) {
+                    if (end - sp < 4) {
+                        throw new EOFException("Truncated LZ4 block checksum");
+                    }
+                    sp += 4;
+                }
+            }
+            if (contentChecksum) {
+                if (end - sp < 4) {
+                    throw new EOFException("Truncated LZ4 content checksum");
+                }
+                sp += 4;
+            }
+            if (contentSize && dp - frameStart != declaredSize) {
+                throw new IOException("LZ4 frame decompressed to the wrong length");
+            }
+        }
+        return dp;
+    }
+
+    /**
+     * Decode a single LZ4 block into the output buffer, which must already hold {@code dstEnd} bytes
+     * @param src The compressed data
+     * @param sp The start of the block in {@code src}
+     * @param srcEnd The end of the block in {@code src}
+     * @param dp The position in the output to decode to
+     * @param dstEnd The maximum end of the decoded data
+     * @param base The earliest output position a match may copy from
+     * @return The end of the decoded data
+     */
+    private int decodeLz4Block(byte[] src, int sp, int srcEnd, int dp, int dstEnd, int base) throws IOException {
+        byte[] dst = output;
+        while (true) {
+            if (sp >= srcEnd) {
+                throw new EOFException("Truncated LZ4 sequence");
+            }
+            int token = src[sp++] & 0xFF;
+
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int extra;
+                do {
+                    if (sp >= srcEnd) {
+                        throw new EOFException("Truncated LZ4 literal length");
+                    }
+                    extra = src[sp++] & 0xFF;
+                    literals += extra;
+                } while (extra == 255 && literals <= srcEnd - sp);
+            }
+            if (literals > srcEnd - sp || literals > dstEnd - dp) {
+                throw new EOFException("LZ4 literals out of bounds");
+            }
+            System.arraycopy(src, sp, dst, dp, literals);
+            sp += literals;
+            dp += literals;
+            if (sp == srcEnd) {
+                // The last sequence has no match
+                return dp;
+            }
+
+            if (srcEnd - sp < 2) {
+                throw new EOFException("Truncated LZ4 match offset");
+            }
+            int offset = (src[sp] & 0xFF) | ((src[sp + 1] & 0xFF) << 8);
+            sp += 2;
+            if (offset == 0 || offset > dp - base) {
+                throw new IOException("LZ4 match offset out of bounds");
+            }
+
+            int match = token & 0x0F;
+            if (match == 15) {
+                int extra;
+                do {
+                    if (sp >= srcEnd) {
+                        throw new EOFException("Truncated LZ4 match length");
+                    }
+                    extra = src[sp++] & 0xFF;
+                    match += extra;
+                } while (extra == 255 && match <= dstEnd - dp);
+            }
+            match += LZ4_MIN_MATCH;
+            if (match > dstEnd - dp) {
+                throw new EOFException("LZ4 match out of bounds");
+            }
+
+            int from = dp - offset;
+            if (offset >= match) {
+                System.arraycopy(dst, from, dst, dp, match);
+            } else {
+                // The match overlaps its own output and repeats the last offset bytes. Each copy doubles the run
+                // that is available to copy from.
+                int copied = 0;
+                while (copied < match) {
+                    int run = Math.min(offset + copied, match - copied);
+                    System.arraycopy(dst, from, dst, dp + copied, run);
+                    copied += run;
+                }
+            }
+            dp += match;
+        }
+    }
+
+    private static IOException unknownCompressionType(int compressionType) {
+        return new IOException("Unknown compression type " + compressionType);
+    }
+
+    private static boolean isLz4Frame(int magic) {
+        return magic == LZ4_FRAME_MAGIC || (magic & 0xFFFFFFF0) == LZ4_SKIPPABLE_MAGIC;
+    }
+
+    private static long readLongLE(byte[] data, int offset) {
+        return (readIntLE(data, offset) & 0xFFFFFFFFL) | (long) readIntLE(data, offset + 4) << 32;
+    }
+
+    private static int readIntLE(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8 | (data[offset + 2] & 0xFF) << 16
+                | (data[offset + 3] & 0xFF) << 24;
+    }
+
+    private void ensureOutputCapacity(int capacity) {
+        if (capacity > output.length) {
+            output = Arrays.copyOf(output, Math.max(capacity, output.length * 2));
+        }
+    }
+
+    private void end() {
+        zlibInflater.end();
+        gzipInflater.end();
+    }
+
+    private static void skipGzipHeader(ByteBuffer buffer) throws IOException {
+        try {
+            if ((buffer.get() & 0xFF) != 0x1F || (buffer.get() & 0xFF) != 0x8B) {
+                throw new ZipException("Not in GZIP format");
+            }
+            if (buffer.get() != 8) {
+                throw new ZipException("Unsupported compression method");
+            }
+            int flags = buffer.get() & 0xFF;
+            skip(buffer, 6); // MTIME, XFL, OS
+            if ((flags & 4) != 0) { // FEXTRA
+                skip(buffer, (buffer.get() & 0xFF) | ((buffer.get() & 0xFF) << 8));
+            }
+            if ((flags & 8) != 0) { // FNAME
+                while (buffer.get() != 0);
+            }
+            if ((flags & 16) != 0) { // FCOMMENT
+                while (buffer.get() != 0);
+            }
+            if ((flags & 2) != 0) { // FHCRC
+                skip(buffer, 2);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated GZIP header");
+        }
+    }
+
+    private static void skip(ByteBuffer buffer, int length) {
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        buffer.position(buffer.position() + length);
+    }
+
+    /**
+     * A bounded set of decompression contexts shared by the workers of one extraction.
+     * <p>
+     * Contexts are created on demand up to the pool size. Workers block while every context is in use, until one is
+     * returned or the pool is closed.
+     */
+    static final class Pool implements AutoCloseable {
+        private static final long CLOSE_CHECK_INTERVAL_MILLIS = 100;
+
+        private final int size;
+        private final BlockingQueue<DecompressionContext> idle;
+        private final List<DecompressionContext> created = new ArrayList<>();
+        private boolean closed;
+
+        Pool(int size) {
+            if (size < 1) {
+                throw new IllegalArgumentException("Pool size must be positive: " + size);
+            }
+            this.size = size;
+            this.idle = new ArrayBlockingQueue<>(size);
+        }
+
+        /**
+         * Borrow a context, blocking until one is available
+         * @return A context that must be closed to return it to the pool
+         * @throws IllegalStateException If the pool is closed, also while waiting
+         */
+        DecompressionContext acquire() {
+            DecompressionContext context = idle.poll();
+            if (context != null) {
+                return context;
+            }
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("Pool is closed");
+                }
+                if (created.size() < size) {
+                    context = new DecompressionContext(this);
+                    created.add(context);
+                    return context;
+                }
+            }
+            try {
+                // A context returned after close is ended rather than queued, so waiters recheck for close
+                while (true) {
+                    context = idle.poll(CLOSE_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (context != null) {
+                        return context;
+                    }
+                    synchronized (this) {
+                        if (closed) {
+                            throw new IllegalStateException("Pool is closed");
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a decompression context", e);
+            }
+        }
+
+        private synchronized void release(DecompressionContext context) {
+            if (closed) {
+                context.end();
+            } else {
+                idle.offer(context);
+            }
+        }
+
+        /**
+         * Release the native memory of every context that isn't in use.
+         * Contexts still in use are released when they are returned.
+         */
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            DecompressionContext context;
+            while ((context = idle.poll()) != null) {
+                context.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Chunks too large for their region file.
+ * <p>
+ * When a compressed chunk exceeds the 1 MiB that a location entry can address, Minecraft sets {@link #FLAG} in its
+ * compression type byte, stores only that byte in the region file, and writes the compressed payload to a sibling
+ * {@code c.<x>.<z>.mcc} file. External chunks are scanned as their own tasks, streamed through the inflater in small
+ * windows rather than loaded whole.
+ */
+final class ExternalChunk {
+    static final int FLAG = 0x80;
+
+    private static final Pattern FILE_NAME = Pattern.compile("c\\.(-?\\d+)\\.(-?\\d+)\\.mcc");
+    private static final Pattern REGION_FILE_NAME = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.mca");
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+    private ExternalChunk() {
+    }
+
+    /**
+     * @param compressionType The compression type byte of a chunk in a region file
+     * @return Whether the payload of the chunk is stored in an external file
+     */
+    static boolean isExternal(byte compressionType) {
+        return (compressionType & FLAG) != 0;
+    }
+
+    /**
+     * @param fileName A file name
+     * @return Whether the name is that of an external chunk file
+     */
+    static boolean isExternalChunkFile(String fileName) {
+        return FILE_NAME.matcher(fileName).matches();
+    }
+
+    /**
+     * @param regionPath The region file holding the chunk's entry
+     * @param index The chunk index
+     * @return The external file the chunk's payload is stored in
+     */
+    static Path path(Path regionPath, int index) {
+        Matcher matcher = REGION_FILE_NAME.matcher(regionPath.getFileName().toString());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Not a region file: " + regionPath);
+        }
+        int x = Integer.parseInt(matcher.group(1)) * 32 + index % 32;
+        int z = Integer.parseInt(matcher.group(2)) * 32 + index / 32;
+        return regionPath.resolveSibling("c." + x + "." + z + ".mcc");
+    }
+
+    /**
+     * Scan an external chunk file
+     * <p>
+     * The compression type is read from the chunk's entry in its region file. Files left behind by a chunk that has
+     * since shrunk back into its region file are ignored.
+     * @param mccPath The external chunk file
+     * @param sources Opens the region and external chunk files
+     * @param context The decompression context to inflate with
+     * @param scanner Receives the decompressed chunk
+     * @return Whether the file holds the current payload of its chunk and was scanned
+     * @throws IOException If an I/O error occurs or the payload is malformed
+     */
+    static boolean scan(Path mccPath, FileSource.Factory sources, DecompressionContext context, NBTScanner scanner)
+            throws IOException {
+        Matcher matcher = FILE_NAME.matcher(mccPath.getFileName().toString());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Not an external chunk file: " + mccPath);
+        }
+        int x = Integer.parseInt(matcher.group(1));
+        int z = Integer.parseInt(matcher.group(2));
+        Path regionPath = mccPath.resolveSibling("r." + (x >> 5) + "." + (z >> 5) + ".mca");
+        int index = (x & 31) + (z & 31) * 32;
+
+        int compressionType = compressionType(sources, regionPath, index);
+        if (compressionType == -1) {
+            return false;
+        }
+        // The scanner reads the stream to the end before the source, and any mapping behind its windows, is closed
+        try (FileSource source = sources.open(mccPath);
+             InputStream compressed = new SourceInputStream(source)) {
+            scanner.scan(context.stream(compressed, compressionType));
+        }
+        return true;
+    }
+
+    /**
+     * @return The compression type of an external chunk without {@link #FLAG}, or -1 if the region file doesn't
+     * store the chunk externally
+     */
+    private static int compressionType(FileSource.Factory sources, Path regionPath, int index) throws IOException {
+        if (!Files.isRegularFile(regionPath)) {
+            return -1;
+        }
+        try (FileSource region = sources.open(regionPath)) {
+            ByteBuffer table = region.read(0, RegionFile.CHUNKS * 4);
+            if (table.remaining() < RegionFile.CHUNKS * 4) {
+                return -1;
+            }
+            int location = table.getInt(table.position() + index * 4);
+            long offset = (long) ((location >> 8) & 0xFFFFFF) * RegionFile.SECTOR_SIZE;
+            if (location == 0) {
+                return -1;
+            }
+            ByteBuffer header = region.read(offset, 5);
+            if (header.remaining() < 5) {
+                return -1;
+            }
+            byte compressionType = header.get(header.position() + 4);
+            return isExternal(compressionType) ? compressionType & ~FLAG & 0xFF : -1;
+        }
+    }
+
+    /**
+     * Reads a file source front to back in windows, so mapped files are never copied whole to the heap
+     */
+    private static final class SourceInputStream extends InputStream {
+        private final FileSource source;
+        private final long size;
+        private long position;
+        private ByteBuffer window = ByteBuffer.allocate(0);
+
+        private SourceInputStream(FileSource source) throws IOException {
+            this.source = source;
+            this.size = source.size();
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? window.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int read = Math.min(len, window.remaining());
+            window.get(b, off, read);
+            return read;
+        }
+
+        private boolean fill() throws IOException {
+            if (window.hasRemaining()) {
+                return true;
+            }
+            if (position >= size) {
+                return false;
+            }
+            window = source.read(position, (int) Math.min(WINDOW_SIZE, size - position));
+            position += window.remaining();
+            return window.hasRemaining();
+        }
+    }
+}
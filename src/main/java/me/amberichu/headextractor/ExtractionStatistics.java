@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters collected during a head extraction. Pass an instance to {@link ScanOptions.Builder#statistics} to read them
+ * after the scan. All counters are safe to update from multiple threads.
+ */
+public final class ExtractionStatistics {
+    private final LongAdder bytesRead = new LongAdder();
+    private final AtomicLong firstReadNanos = new AtomicLong();
+    private final AtomicLong lastReadNanos = new AtomicLong();
+    private final LongAdder throttledNanos = new LongAdder();
+    private final LongAdder bytesPrefetched = new LongAdder();
+    private final AtomicLong liveMappings = new AtomicLong();
+    private final AtomicLong peakLiveMappings = new AtomicLong();
+    private final LongAdder cpuPausedNanos = new LongAdder();
+    private final LongAdder chunksScanned = new LongAdder();
+    private final LongAdder chunksSkipped = new LongAdder();
+    private final LongAdder externalChunksScanned = new LongAdder();
+    private final Queue<FailedChunk> failedChunks = new ConcurrentLinkedQueue<>();
+    private final LongAdder stringsMatched = new LongAdder();
+    private final LongAdder stringsRejected = new LongAdder();
+    private final LongAdder candidatesValidated = new LongAdder();
+    private final LongAdder validCacheHits = new LongAdder();
+    private final LongAdder invalidCacheHits = new LongAdder();
+    private final Map<String, Stage> stages = Collections.synchronizedMap(new LinkedHashMap<>());
+    private volatile long readRateLimit;
+    private volatile double cpuBudget;
+
+    /**
+     * @return The number of bytes read from region and player data files
+     */
+    public long bytesRead() {
+        return bytesRead.sum();
+    }
+
+    /**
+     * @return The number of bytes loaded into the page cache ahead of the workers
+     */
+    public long bytesPrefetched() {
+        return bytesPrefetched.sum();
+    }
+
+    /**
+     * @return The largest number of region and player data files that were memory-mapped at the same time
+     */
+    public long peakLiveMappings() {
+        return peakLiveMappings.get();
+    }
+
+    /**
+     * @return The rate of bytes read per second between the first and the last read
+     */
+    public double readThroughput() {
+        long first = firstReadNanos.get();
+        long last = lastReadNanos.get();
+        return first == 0 || last <= first ? 0 : bytesRead() * 1e9 / (last - first);
+    }
+
+    /**
+     * @return The configured limit on bytes read per second, or 0 if reads weren't throttled
+     */
+    public long readRateLimit() {
+        return readRateLimit;
+    }
+
+    /**
+     * @return The total time workers spent waiting for the read throttle, in nanoseconds
+     */
+    public long throttledNanos() {
+        return throttledNanos.sum();
+    }
+
+    /**
+     * @return The number of cores the workers were allowed to keep busy, or 0 if CPU usage wasn't limited
+     */
+    public double cpuBudget() {
+        return cpuBudget;
+    }
+
+    /**
+     * @return The total time workers paused to stay within the CPU budget, in nanoseconds
+     */
+    public long cpuPausedNanos() {
+        return cpuPausedNanos.sum();
+    }
+
+    /**
+     * @return The number of chunks that were parsed as NBT
+     */
+    public long chunksScanned() {
+        return chunksScanned.sum();
+    }
+
+    /**
+     * @return The number of chunks skipped by the byte-level prefilter without being parsed
+     */
+    public long chunksSkipped() {
+        return chunksSkipped.sum();
+    }
+
+    /**
+     * @return The number of chunks too large for their region file that were scanned from their external file
+     */
+    public long externalChunksScanned() {
+        return externalChunksScanned.sum();
+    }
+
+    /**
+     * @return The chunks and files that couldn't be read or parsed and were left out, in the order they failed
+     */
+    public List<FailedChunk> failedChunks() {
+        return List.copyOf(failedChunks);
+    }
+
+    /**
+     * @return The number of strings searched for base64 candidates
+     */
+    public long stringsMatched() {
+        return stringsMatched.sum();
+    }
+
+    /**
+     * @return The number of strings rejected by the pre-check without being searched
+     */
+    public long stringsRejected() {
+        return stringsRejected.sum();
+    }
+
+    /**
+     * @return The number of distinct candidates that were decoded and validated
+     */
+    public long candidatesValidated() {
+        return candidatesValidated.sum();
+    }
+
+    /**
+     * @return The number of repeated candidates accepted from the cache without being validated again
+     */
+    public long validCacheHits() {
+        return validCacheHits.sum();
+    }
+
+    /**
+     * @return The number of repeated candidates rejected from the cache without being validated again
+     */
+    public long invalidCacheHits() {
+        return invalidCacheHits.sum();
+    }
+
+    /**
+     * @return The statistics of each stage of the pipelined scan, in pipeline order. Empty unless the pipeline is used.
+     */
+    public Map<String, Stage> stages() {
+        synchronized (stages) {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(stages));
+        }
+    }
+
+    Stage stage(String name) {
+        return stages.computeIfAbsent(name, Stage::new);
+    }
+
+    void bytesRead(long bytes) {
+        long now = System.nanoTime();
+        firstReadNanos.compareAndSet(0, now);
+        lastReadNanos.accumulateAndGet(now, Math::max);
+        bytesRead.add(bytes);
+    }
+
+    void bytesPrefetched(long bytes) {
+        bytesPrefetched.add(bytes);
+    }
+
+    void mapped() {
+        peakLiveMappings.accumulateAndGet(liveMappings.incrementAndGet(), Math::max);
+    }
+
+    void unmapped() {
+        liveMappings.decrementAndGet();
+    }
+
+    void readRateLimit(long bytesPerSecond) {
+        readRateLimit = bytesPerSecond;
+    }
+
+    void throttled(long nanos) {
+        throttledNanos.add(nanos);
+    }
+
+    void cpuBudget(double cores) {
+        cpuBudget = cores;
+    }
+
+    void cpuPaused(long nanos) {
+        cpuPausedNanos.add(nanos);
+    }
+
+    void chunkScanned() {
+        chunksScanned.increment();
+    }
+
+    void chunkSkipped() {
+        chunksSkipped.increment();
+    }
+
+    void externalChunkScanned() {
+        externalChunksScanned.increment();
+    }
+
+    void chunkFailed(FailedChunk chunk) {
+        failedChunks.add(chunk);
+    }
+
+    void stringMatched() {
+        stringsMatched.increment();
+    }
+
+    void stringRejected() {
+        stringsRejected.increment();
+    }
+
+    void candidateValidated() {
+        candidatesValidated.increment();
+    }
+
+    void cacheHit(boolean valid) {
+        (valid ? validCacheHits : invalidCacheHits).increment();
+    }
+
+    /**
+     * @return A human-readable summary of the counters, one per line
+     */
+    @Override
+    public String toString() {
+        long scanned = chunksScanned();
+        long skipped = chunksSkipped();
+        long total = scanned + skipped;
+        long matched = stringsMatched();
+        long rejected = stringsRejected();
+        long validated = candidatesValidated();
+        long validHits = validCacheHits();
+        long invalidHits = invalidCacheHits();
+        long hits = validHits + invalidHits;
+        StringBuilder stageSummary = new StringBuilder();
+        synchronized (stages) {
+            for (Stage stage : stages.values()) {
+                stageSummary.append(System.lineSeparator()).append(stage);
+            }
+        }
+        double cores = cpuBudget();
+        String cpu = cores == 0 ? "unlimited" : String.format("budget of %.2f cores, %d ms paused", cores,
+                TimeUnit.NANOSECONDS.toMillis(cpuPausedNanos()));
+        return String.format("Read: %d bytes at %.0f bytes/s (%s), %d bytes prefetched%n", bytesRead(),
+                readThroughput(), throttle(), bytesPrefetched())
+                + String.format("Mappings: %d peak live (%s)%n", peakLiveMappings(), Mapping.releaseMethod())
+                + String.format("CPU: %s%n", cpu)
+                + String.format("Chunks: %d scanned, %d skipped by prefilter (%s), %d external, %d failed%n", scanned,
+                skipped, percent(skipped, total), externalChunksScanned(), failedChunks.size())
+                + String.format("Strings: %d searched, %d rejected by pre-check (%s)%n", matched, rejected,
+                percent(rejected, matched + rejected))
+                + String.format("Candidates: %d validated, %d valid and %d invalid cache hits (%s hit rate)",
+                validated, validHits, invalidHits, percent(hits, validated + hits))
+                + stageSummary;
+    }
+
+    /**
+     * @param recentThroughput The rate of bytes read per second since the last progress line
+     * @return A single line describing how far a running scan has got and how fast it is reading
+     */
+    String progress(double recentThroughput) {
+        return String.format("Progress: %d bytes read at %.0f bytes/s (%s), %d chunks scanned, %d skipped, %d failed",
+                bytesRead(), recentThroughput, throttle(), chunksScanned(), chunksSkipped(), failedChunks.size());
+    }
+
+    private String throttle() {
+        long limit = readRateLimit();
+        return limit == 0 ? "unthrottled" : String.format("throttled to %d bytes/s, %d ms waiting", limit,
+                TimeUnit.NANOSECONDS.toMillis(throttledNanos()));
+    }
+
+    /**
+     * Throughput and input queue depth of one stage of the pipelined scan
+     */
+    public static final class Stage {
+        private final String name;
+        private final LongAdder items = new LongAdder();
+        private final LongAdder queueDepthSum = new LongAdder();
+        private final LongAdder queueDepthSamples = new LongAdder();
+        private final AtomicLong maxQueueDepth = new AtomicLong();
+        private final AtomicLong startNanos = new AtomicLong();
+        private final AtomicLong endNanos = new AtomicLong();
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return The name of the stage
+         */
+        public String name() {
+            return name;
+        }
+
+        /**
+         * @return The number of items the stage processed
+         */
+        public long items() {
+            return items.sum();
+        }
+
+        /**
+         * @return The number of items processed per second while the stage was running
+         */
+        public double throughput() {
+            long start = startNanos.get();
+            long end = endNanos.get() != 0 ? endNanos.get() : System.nanoTime();
+            return start == 0 || end <= start ? 0 : items() * 1e9 / (end - start);
+        }
+
+        /**
+         * @return The mean number of items waiting in the stage's input queue, sampled whenever an item was added
+         */
+        public double averageQueueDepth() {
+            long samples = queueDepthSamples.sum();
+            return samples == 0 ? 0 : (double) queueDepthSum.sum() / samples;
+        }
+
+        /**
+         * @return The largest number of items seen waiting in the stage's input queue
+         */
+        public long maxQueueDepth() {
+            return maxQueueDepth.get();
+        }
+
+        void started() {
+            startNanos.compareAndSet(0, System.nanoTime());
+        }
+
+        void finished() {
+            endNanos.set(System.nanoTime());
+        }
+
+        void itemProcessed() {
+            items.increment();
+        }
+
+        void queued(int depth) {
+            queueDepthSum.add(depth);
+            queueDepthSamples.increment();
+            maxQueueDepth.accumulateAndGet(depth, Math::max);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Stage %s: %d items, %.1f items/s, queue depth %.1f average, %d max", name, items(),
+                    throughput(), averageQueueDepth(), maxQueueDepth());
+        }
+    }
+
+    private static String percent(long part, long total) {
+        return total == 0 ? "n/a" : String.format("%.1f%%", 100.0 * part / total);
+    }
+}
@@ -0,0 +1,526 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Random access to the bytes of a region or player data file, backed by one of the {@link IOMode}s.
+ * <p>
+ * A buffer returned by {@link #read} is only valid until the next read or until the source is closed. Mapped files
+ * may be unmapped on close, so touching a buffer afterwards may fail, or crash the JVM when {@link Mapping} is told to
+ * unmap through the buffer cleaner.
+ */
+abstract class FileSource implements AutoCloseable {
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+    private static final long MIN_BURST = 1024 * 1024;
+
+    // File store types that are slow to fault pages in from, or that invalidate mappings behind our back
+    private static final Set<String> NETWORK_FILE_STORES = Set.of("nfs", "nfs4", "cifs", "smb", "smbfs", "smb2",
+            "9p", "fuse.sshfs", "afs", "ceph", "glusterfs", "fuse.glusterfs", "davfs", "fuse.rclone");
+
+    protected final ExtractionStatistics statistics;
+    private final Throttle throttle;
+
+    private FileSource(Factory factory) {
+        this.statistics = factory.statistics;
+        this.throttle = factory.throttle;
+    }
+
+    /**
+     * @return The size of the file in bytes
+     * @throws IOException If an I/O error occurs
+     */
+    abstract long size() throws IOException;
+
+    /**
+     * Read part of the file
+     * @param position The offset of the first byte to read
+     * @param length The number of bytes to read
+     * @return A buffer holding the bytes from its position to its limit, fewer than requested at the end of the file
+     * @throws IOException If an I/O error occurs
+     */
+    abstract ByteBuffer read(long position, int length) throws IOException;
+
+    /**
+     * Announce a read that will follow the reads announced before it, so a source that can read concurrently may
+     * start it early. Reads that don't follow the announced order are still served, just not ahead of time.
+     * @param position The offset of the first byte that will be read
+     * @param length The number of bytes that will be read
+     * @throws IOException If an I/O error occurs
+     */
+    void willRead(long position, int length) throws IOException {
+    }
+
+    @Override
+    public abstract void close() throws IOException;
+
+    /**
+     * Wait for the read throttle, if any, before reading
+     * @param bytes The number of bytes about to be read
+     * @throws IOException If the thread is interrupted while waiting
+     */
+    protected void throttle(long bytes) throws IOException {
+        if (throttle != null) {
+            throttle.acquire(bytes);
+        }
+    }
+
+    /**
+     * Opens files with a fixed {@link IOMode} and shares direct buffers between the sources of one extraction
+     */
+    static final class Factory {
+        private final IOMode mode;
+        private final ExtractionStatistics statistics;
+        private final Throttle throttle;
+        private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final Map<Path, IOMode> directoryModes = new ConcurrentHashMap<>();
+        private final Set<Path> directUnsupported = ConcurrentHashMap.newKeySet();
+
+        /**
+         * @param mode How files are read
+         * @param maxReadRate The maximum number of bytes read per second by all sources together, or 0 for no limit
+         * @param statistics Records the bytes read
+         */
+        Factory(IOMode mode, long maxReadRate, ExtractionStatistics statistics) {
+            this.mode = mode;
+            this.statistics = statistics;
+            if (maxReadRate > 0) {
+                // Allow a quarter of a second of reads at once, but never less than a whole coalesced read
+                throttle = new Throttle(maxReadRate, Math.max(maxReadRate / 4.0, MIN_BURST), statistics::throttled);
+                statistics.readRateLimit(maxReadRate);
+            } else {
+                throttle = null;
+            }
+        }
+
+        /**
+         * @param path The file to open
+         * @return A source that must be closed to release the file and its buffer
+         * @throws IOException If the file can't be opened
+         */
+        FileSource open(Path path) throws IOException {
+            return switch (resolve(path)) {
+                case MAPPED -> new Mapped(path, this);
+                case ASYNC -> new Async(path, this);
+                case DIRECT -> openDirect(path);
+                default -> new Positional(path, this);
+            };
+        }
+
+        private FileSource openDirect(Path path) throws IOException {
+            Path directory = path.toAbsolutePath().getParent();
+            if (!directUnsupported.contains(directory)) {
+                try {
+                    return new Direct(path, this);
+                } catch (IOException | UnsupportedOperationException e) {
+                    // Usually EINVAL from a file system without O_DIRECT, such as tmpfs
+                    directUnsupported.add(directory);
+                }
+            }
+            return new Positional(path, this);
+        }
+
+        /**
+         * @param path A file that would be opened
+         * @return The mode used for the file, never {@link IOMode#AUTO}
+         */
+        IOMode resolve(Path path) {
+            if (mode != IOMode.AUTO) {
+                return mode;
+            }
+            // Looking up the file store is slow on some platforms, and every file in a directory shares it
+            Path directory = path.toAbsolutePath().getParent();
+            return directory == null ? detect(path) : directoryModes.computeIfAbsent(directory, Factory::detect);
+        }
+
+        private static IOMode detect(Path path) {
+            if ("32".equals(System.getProperty("sun.arch.data.model"))) {
+                // Mapping whole region files quickly exhausts a 32-bit address space
+                return IOMode.READ;
+            }
+            try {
+                FileStore store = Files.getFileStore(path);
+                return NETWORK_FILE_STORES.contains(store.type().toLowerCase(Locale.ROOT)) ? IOMode.READ
+                        : IOMode.MAPPED;
+            } catch (IOException e) {
+                return IOMode.READ;
+            }
+        }
+
+        private ByteBuffer acquire(int capacity) {
+            ByteBuffer buffer;
+            while ((buffer = buffers.poll()) != null) {
+                if (buffer.capacity() >= capacity) {
+                    return buffer.clear();
+                }
+                // Too small for this source, let it be collected and allocate a larger one
+            }
+            return ByteBuffer.allocateDirect(Math.max(capacity, MIN_BUFFER_SIZE));
+        }
+
+        private void release(ByteBuffer buffer) {
+            if (buffer != null) {
+                buffers.offer(buffer);
+            }
+        }
+    }
+
+    private static final class Mapped extends FileSource {
+        private final Mapping mapping;
+        private final ByteBuffer buffer;
+
+        Mapped(Path path, Factory factory) throws IOException {
+            super(factory);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                // The mapping stays valid after the channel is closed
+                mapping = Mapping.map(channel, statistics);
+            }
+            buffer = mapping.buffer();
+        }
+
+        @Override
+        long size() {
+            return buffer.capacity();
+        }
+
+        @Override
+        ByteBuffer read(long position, int length) throws IOException {
+            // The pages are faulted in later, but they are only ever touched through the returned slice
+            throttle(length);
+            int start = (int) Math.min(position, buffer.capacity());
+            int end = (int) Math.min(position + length, buffer.capacity());
+            statistics.bytesRead(end - start);
+            return buffer.slice(start, end - start);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Unmap now where possible rather than once the buffer is collected, so mappings don't pile up
+            mapping.close();
+        }
+    }
+
+    /**
+     * A source that reads into a direct buffer borrowed from its factory
+     */
+    private abstract static class Buffered extends FileSource {
+        private final Factory factory;
+        private ByteBuffer buffer;
+
+        Buffered(Factory factory) {
+            super(factory);
+            this.factory = factory;
+        }
+
+        @Override
+        ByteBuffer read(long position, int length) throws IOException {
+            if (buffer == null || buffer.capacity() < length) {
+                factory.release(buffer);
+                buffer = factory.acquire(length);
+            }
+            throttle(length);
+            buffer.clear().limit(length);
+            while (buffer.hasRemaining()) {
+                int read = readAt(buffer, position);
+                if (read == -1) {
+                    break;
+                }
+                position += read;
+            }
+            statistics.bytesRead(buffer.position());
+            return buffer.flip();
+        }
+
+        abstract int readAt(ByteBuffer buffer, long position) throws IOException;
+
+        @Override
+        public void close() throws IOException {
+            factory.release(buffer);
+            buffer = null;
+        }
+    }
+
+    private static final class Positional extends Buffered {
+        private final FileChannel channel;
+
+        Positional(Path path, Factory factory) throws IOException {
+            super(factory);
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+
+        @Override
+        long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        int readAt(ByteBuffer buffer, long position) throws IOException {
+            return channel.read(buffer, position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                super.close();
+            }
+        }
+    }
+
+    /**
+     * Direct I/O requires the file position, the length, and the buffer address to be aligned to the block size, so
+     * reads are widened to whole blocks and the requested bytes are returned as a slice
+     */
+    private static final class Direct extends FileSource {
+        private static final int DEFAULT_ALIGNMENT = 4096;
+
+        private final Path path;
+        private final Factory factory;
+        private final int alignment;
+        private FileChannel channel;
+        private ByteBuffer pooled;
+        private ByteBuffer buffer;
+
+        Direct(Path path, Factory factory) throws IOException {
+            super(factory);
+            this.path = path;
+            this.factory = factory;
+            this.alignment = alignment(path);
+            this.channel = FileChannel.open(path, StandardOpenOption.READ, ExtendedOpenOption.DIRECT);
+        }
+
+        @Override
+        long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        ByteBuffer read(long position, int length) throws IOException {
+            long start = position - position % alignment;
+            long end = position + length;
+            end += (alignment - end % alignment) % alignment;
+            int span = (int) (end - start);
+            if (buffer == null || buffer.capacity() < span) {
+                factory.release(pooled);
+                pooled = factory.acquire(span + alignment);
+                buffer = pooled.clear().alignedSlice(alignment);
+            }
+            throttle(span);
+            buffer.clear().limit(span);
+            try {
+                readBlocks(start);
+            } catch (IOException e) {
+                // Some file systems accept O_DIRECT when opening but reject the reads
+                fallBack();
+                buffer.clear().limit(span);
+                readBlocks(start);
+            }
+
+            int offset = (int) (position - start);
+            int available = Math.max(0, Math.min(length, buffer.position() - offset));
+            statistics.bytesRead(available);
+            return buffer.slice(offset, available);
+        }
+
+        private void readBlocks(long start) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, start + buffer.position());
+                // A short read that leaves the buffer unaligned can only happen at the end of the file
+                if (read == -1 || buffer.position() % alignment != 0) {
+                    break;
+                }
+            }
+        }
+
+        private void fallBack() throws IOException {
+            factory.directUnsupported.add(path.toAbsolutePath().getParent());
+            channel.close();
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                factory.release(pooled);
+                pooled = null;
+                buffer = null;
+            }
+        }
+
+        private static int alignment(Path path) {
+            try {
+                long blockSize = Files.getFileStore(path).getBlockSize();
+                if (blockSize > 0 && blockSize <= 64 * 1024 && Long.bitCount(blockSize) == 1) {
+                    return (int) blockSize;
+                }
+            } catch (IOException | UnsupportedOperationException ignored) {
+            }
+            return DEFAULT_ALIGNMENT;
+        }
+    }
+
+    /**
+     * Keeps several announced reads in flight, each in its own buffer, so the device works on the next ranges while
+     * the current one is scanned
+     */
+    private static final class Async extends Buffered {
+        private static final int READ_AHEAD = 4;
+
+        private final AsynchronousFileChannel channel;
+        private final Factory factory;
+        private final Queue<AheadRead> announced = new ArrayDeque<>();
+        private final Queue<AheadRead> inFlight = new ArrayDeque<>();
+        private ByteBuffer current;
+
+        Async(Path path, Factory factory) throws IOException {
+            super(factory);
+            this.channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+            this.factory = factory;
+        }
+
+        @Override
+        long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        void willRead(long position, int length) throws IOException {
+            announced.add(new AheadRead(position, length));
+            issue();
+        }
+
+        @Override
+        ByteBuffer read(long position, int length) throws IOException {
+            factory.release(current);
+            current = null;
+            AheadRead next = inFlight.peek();
+            if (next == null || next.position != position || next.length != length) {
+                abandon();
+                return super.read(position, length);
+            }
+            inFlight.remove();
+            current = next.buffer;
+            issue();
+
+            int read = await(next.future);
+            while (read != -1 && current.hasRemaining()) {
+                // Finish a short read, which only happens near the end of the file
+                read = readAt(current, position + current.position());
+            }
+            statistics.bytesRead(current.position());
+            return current.flip();
+        }
+
+        private void issue() throws IOException {
+            while (inFlight.size() < READ_AHEAD && !announced.isEmpty()) {
+                AheadRead read = announced.remove();
+                throttle(read.length);
+                read.buffer = factory.acquire(read.length).limit(read.length);
+                read.future = channel.read(read.buffer, read.position);
+                inFlight.add(read);
+            }
+        }
+
+        /**
+         * Drop the read-ahead once reads leave the announced order
+         */
+        private void abandon() {
+            announced.clear();
+            AheadRead read;
+            while ((read = inFlight.poll()) != null) {
+                // The channel may still be writing into a buffer whose read hasn't completed, so it isn't reused
+                if (read.future.isDone()) {
+                    factory.release(read.buffer);
+                }
+            }
+        }
+
+        @Override
+        int readAt(ByteBuffer buffer, long position) throws IOException {
+            return await(channel.read(buffer, position));
+        }
+
+        private static int await(Future<Integer> future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException cause) {
+                    throw cause;
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                abandon();
+                factory.release(current);
+                current = null;
+                channel.close();
+            } finally {
+                super.close();
+            }
+        }
+
+        private static final class AheadRead {
+            private final long position;
+            private final int length;
+            private ByteBuffer buffer;
+            private Future<Integer> future;
+
+            AheadRead(long position, int length) {
+                this.position = position;
+                this.length = length;
+            }
+        }
+    }
+}
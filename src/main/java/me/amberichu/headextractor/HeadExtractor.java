@@ -24,36 +24,27 @@
 
 package me.amberichu.headextractor;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.github.steveice10.opennbt.NBTIO;
-import com.github.steveice10.opennbt.tag.builtin.CompoundTag;
-import com.github.steveice10.opennbt.tag.builtin.ListTag;
-import com.github.steveice10.opennbt.tag.builtin.StringTag;
-import com.github.steveice10.opennbt.tag.builtin.Tag;
-
 import java.io.*;
-import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.Consumer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.InflaterInputStream;
 
 /**
  * Head Extractor is a tool and library to extract the player profile from the player heads in a Minecraft world.
  * <p>
- * This is accomplished somewhat inefficiently by searching chunk NBT, player data NBT, and entity NBT for lists of
+ * This is accomplished by streaming chunk NBT, player data NBT, and entity NBT and searching for lists of
  * Compound tags that contain a String tag named Value.
  * In addition, mcfunction and json files in data packs are scanned for Base64 encoded player profiles.
+ * <p>
+ * An extractor created with {@link #builder()} keeps its worker pool between extractions and must be closed when it
+ * is no longer needed. The static {@code extractHeads} methods use a temporary extractor.
  */
-public class HeadExtractor {
+public class HeadExtractor implements AutoCloseable {
 
     private static final String USAGE = """
             HeadExtractor by Amberichu
@@ -69,31 +60,139 @@ public class HeadExtractor {
             --exclude-playerdata:  Exclude heads in players' inventories
             --exclude-datapacks:   Exclude base64-encoded player profiles in .json or .mcfunction files in datapacks
             There is also a corresponding --include option for each of the above.
-            The default behavior is to include all heads.""";
+            The default behavior is to include all heads.
+            
+            Tuning:
+            --targeted:                Only scan NBT subtrees that can hold items or profiles
+            --inflater-pool-size=<N>:  Maximum number of live decompression contexts (default: one per thread)
+            --region-split-size=<SIZE>: Scan region files larger than this in parallel chunk ranges (default: 16M,
+                                        0 to disable). Sizes accept a K, M or G suffix.
+            --pipeline:                Scan region files with separate read, inflate, scan and validate stages
+            --pipeline-readers=<N>:    Number of region files read at once in the pipeline (default: 2)
+            --pipeline-queue-capacity=<N>: Capacity of the queue in front of each pipeline stage (default: 256)
+            --threads=<N>:             Number of worker threads (default: one less than the number of processors)
+            --cpu-budget=<FRACTION>:   Fraction of the processors the scan may use, e.g. 0.25. Workers run at low
+                                        priority and pause between chunks to stay within it (default: unlimited)
+            --io=<MODE>:               How region and player data files are read: auto, mapped, read, async or direct
+                                        (default: auto, which maps local files and reads network file systems).
+                                        direct bypasses the page cache to leave a live server's files cached.
+            --max-read-rate=<SIZE>:    Maximum bytes read per second across all threads (default: 0, unlimited).
+                                        Sizes accept a K, M or G suffix.
+            --prefetch-depth=<N>:      Number of region ranges loaded into the page cache ahead of the workers
+                                        (default: 2, 0 to disable)
+            --store-readers=<PATH>=<N>: Number of files read at once from the disk holding PATH, e.g. 1 for a hard
+                                        disk or 8 for an NVMe drive (0 for no limit). May be repeated.
+            --rotational-store-readers=<N>: Number of files read at once from other hard disks (default: 0, no
+                                        limit). Without --pipeline this also limits their scanning threads.
+            --benchmark-io[=<N>]:      Time N extractions with each I/O mode instead of printing heads (default: 3)
+            --benchmark-codecs[=<N>]:  Time N passes decoding the world's chunks recompressed with zlib and with LZ4
+                                        instead of printing heads (default: 3)
+            --progress[=<SECONDS>]:    Print the read rate, with the throttle, and the chunks scanned so far to standard
+                                        error every N seconds during the scan (default: 5)
+            --stats:                   Print scan statistics to standard error""";
+
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final int parallelism;
+    private final double cpuBudget;
+    private final ScanOptions defaultOptions;
+    private volatile boolean closed;
+
+    private HeadExtractor(Builder builder) {
+        this.cpuBudget = builder.cpuBudget;
+        if (builder.executor != null) {
+            this.executor = builder.executor;
+            this.ownedExecutor = null;
+            if (builder.parallelism != 0) {
+                this.parallelism = builder.parallelism;
+            } else if (builder.executor instanceof ForkJoinPool pool) {
+                this.parallelism = pool.getParallelism();
+            } else {
+                this.parallelism = defaultParallelism();
+            }
+        } else {
+            if (builder.parallelism != 0) {
+                this.parallelism = builder.parallelism;
+            } else if (cpuBudget != 0) {
+                // More workers than budgeted cores would only spend their time paused
+                this.parallelism = Math.min(defaultParallelism(), (int) Math.ceil(budgetedCores()));
+            } else {
+                this.parallelism = defaultParallelism();
+            }
+            ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory = ForkJoinPool.defaultForkJoinWorkerThreadFactory;
+            if (cpuBudget != 0) {
+                threadFactory = pool -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                };
+            }
+            // Work stealing lets idle threads pick up the chunk ranges of large region files, and FIFO mode keeps the
+            // largest-first submission order
+            this.ownedExecutor = new ForkJoinPool(parallelism, threadFactory, null, true);
+            this.executor = ownedExecutor;
+        }
+        this.defaultOptions = builder.options != null ? builder.options : ScanOptions.builder().build();
+    }
 
-    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private double budgetedCores() {
+        return cpuBudget * Runtime.getRuntime().availableProcessors();
+    }
 
-    // Adapted from https://stackoverflow.com/a/475217
-    private static final Pattern BASE64_PATTERN = Pattern.compile("\\\\?[\"']((?:[A-Za-z0-9+/]{4})*(?:[A-Za-z0-9+/]{2}==|[A-Za-z0-9+/]{3}=))\\\\?[\"']");
+    private static int defaultParallelism() {
+        // Leave a processor for the caller thread, but always keep at least one worker
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
 
     public static void main(String[] args) throws IOException {
         Set<Path> worldPaths = new HashSet<>();
-        boolean includeEntities = true;
-        boolean includeRegion = true;
-        boolean includePlayerData = true;
-        boolean includeDataPacks = true;
+        ScanOptions.Builder options = ScanOptions.builder();
+        boolean printStatistics = false;
+        int progressInterval = 0;
+        int threads = 0;
+        double cpuBudget = 0;
+        int benchmarkIterations = 0;
+        int codecBenchmarkIterations = 0;
 
         for (String arg : args) {
             if (arg.startsWith("--")) {
-                switch (arg) {
-                    case "--include-entities" -> includeEntities = true;
-                    case "--include-region" -> includeRegion = true;
-                    case "--include-playerdata" -> includePlayerData = true;
-                    case "--include-datapacks" -> includeDataPacks = true;
-                    case "--exclude-entities" -> includeEntities = false;
-                    case "--exclude-region" -> includeRegion = false;
-                    case "--exclude-playerdata" -> includePlayerData = false;
-                    case "--exclude-datapacks" -> includeDataPacks = false;
+                int separator = arg.indexOf('=');
+                String option = separator == -1 ? arg : arg.substring(0, separator);
+                String value = separator == -1 ? null : arg.substring(separator + 1);
+                switch (option) {
+                    case "--include-entities" -> options.includeEntities(true);
+                    case "--include-region" -> options.includeRegion(true);
+                    case "--include-playerdata" -> options.includePlayerData(true);
+                    case "--include-datapacks" -> options.includeDataPacks(true);
+                    case "--exclude-entities" -> options.includeEntities(false);
+                    case "--exclude-region" -> options.includeRegion(false);
+                    case "--exclude-playerdata" -> options.includePlayerData(false);
+                    case "--exclude-datapacks" -> options.includeDataPacks(false);
+                    case "--targeted" -> options.targetedTraversal(true);
+                    case "--inflater-pool-size" -> options.inflaterPoolSize(parseInt(arg, value));
+                    case "--region-split-size" -> options.regionSplitSize(parseSize(arg, value));
+                    case "--pipeline" -> options.pipeline(true);
+                    case "--pipeline-readers" -> options.pipelineReaders(parseInt(arg, value));
+                    case "--pipeline-queue-capacity" -> options.pipelineQueueCapacity(parseInt(arg, value));
+                    case "--threads" -> threads = parseInt(arg, value);
+                    case "--cpu-budget" -> cpuBudget = parseFraction(arg, value);
+                    case "--io" -> options.ioMode(parseIOMode(arg, value));
+                    case "--max-read-rate" -> options.maxReadRate(parseSize(arg, value));
+                    case "--prefetch-depth" -> options.prefetchDepth(parseInt(arg, value));
+                    case "--store-readers" -> {
+                        int split = value == null ? -1 : value.lastIndexOf('=');
+                        if (split <= 0) {
+                            System.err.println("Invalid value for " + arg + ", use --help for help.");
+                            System.exit(1);
+                        }
+                        options.storeReaders(parsePath(arg, value.substring(0, split)),
+                                parseInt(arg, value.substring(split + 1)));
+                    }
+                    case "--rotational-store-readers" -> options.rotationalStoreReaders(parseInt(arg, value));
+                    case "--benchmark-io" -> benchmarkIterations = value == null ? 3 : parseInt(arg, value);
+                    case "--benchmark-codecs" -> codecBenchmarkIterations = value == null ? 3 : parseInt(arg, value);
+                    case "--progress" -> progressInterval = value == null ? 5 : parseInt(arg, value);
+                    case "--stats" -> printStatistics = true;
                     case "--help" -> {
                         System.out.println(USAGE);
                         return;
@@ -125,8 +224,118 @@ public class HeadExtractor {
             return;
         }
 
-        Set<String> heads = extractHeads(worldPaths, includeEntities, includeRegion, includePlayerData, includeDataPacks);
+        if (codecBenchmarkIterations > 0) {
+            CodecBenchmark.run(worldPaths, options.build(), codecBenchmarkIterations, System.err);
+            return;
+        }
+
+        if (benchmarkIterations > 0) {
+            try (HeadExtractor extractor = builder().parallelism(threads).cpuBudget(cpuBudget).build()) {
+                IOBenchmark.run(extractor, worldPaths, options, benchmarkIterations, System.err);
+            }
+            return;
+        }
+
+        ScanOptions scanOptions = options.build();
+        Set<String> heads;
+        ProgressReporter progress = null;
+        try (HeadExtractor extractor = builder().parallelism(threads).cpuBudget(cpuBudget).build()) {
+            if (progressInterval > 0) {
+                progress = new ProgressReporter(scanOptions.statistics(), progressInterval, System.err);
+            }
+            heads = extractor.extract(worldPaths, scanOptions);
+        } finally {
+            if (progress != null) {
+                progress.close();
+            }
+        }
         heads.forEach(System.out::println);
+        if (printStatistics) {
+            System.err.println(scanOptions.statistics());
+        }
+    }
+
+    private static int parseInt(String arg, String value) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed >= 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        System.err.println("Invalid value for " + arg + ", use --help for help.");
+        System.exit(1);
+        return 0;
+    }
+
+    private static double parseFraction(String arg, String value) {
+        if (value != null) {
+            try {
+                double parsed = Double.parseDouble(value);
+                if (parsed > 0 && parsed <= 1) {
+                    return parsed;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        System.err.println("Invalid value for " + arg + ", use --help for help.");
+        System.exit(1);
+        return 0;
+    }
+
+    private static Path parsePath(String arg, String value) {
+        try {
+            Path path = Path.of(value);
+            if (Files.exists(path)) {
+                return path;
+            }
+        } catch (InvalidPathException ignored) {
+        }
+        System.err.println("Invalid value for " + arg + ", use --help for help.");
+        System.exit(1);
+        return null;
+    }
+
+    private static IOMode parseIOMode(String arg, String value) {
+        if (value != null) {
+            for (IOMode mode : IOMode.values()) {
+                if (mode.name().equalsIgnoreCase(value)) {
+                    return mode;
+                }
+            }
+        }
+        System.err.println("Invalid value for " + arg + ", use --help for help.");
+        System.exit(1);
+        return null;
+    }
+
+    private static long parseSize(String arg, String value) {
+        if (value != null && !value.isEmpty()) {
+            long multiplier = switch (Character.toUpperCase(value.charAt(value.length() - 1))) {
+                case 'K' -> 1024L;
+                case 'M' -> 1024L * 1024;
+                case 'G' -> 1024L * 1024 * 1024;
+                default -> 1;
+            };
+            String digits = multiplier == 1 ? value : value.substring(0, value.length() - 1);
+            try {
+                long parsed = Long.parseLong(digits);
+                if (parsed >= 0) {
+                    return Math.multiplyExact(parsed, multiplier);
+                }
+            } catch (NumberFormatException | ArithmeticException ignored) {
+            }
+        }
+        System.err.println("Invalid value for " + arg + ", use --help for help.");
+        System.exit(1);
+        return 0;
+    }
+
+    /**
+     * @return A builder for an extractor with its own worker pool and default scan options
+     */
+    public static Builder builder() {
+        return new Builder();
     }
 
     /**
@@ -141,58 +350,249 @@ public class HeadExtractor {
      */
     public static Set<String> extractHeads(Set<Path> worldPaths, boolean includeEntities, boolean includeRegion,
                                             boolean includePlayerData, boolean includeDataPacks) throws IOException {
+        return extractHeads(worldPaths, ScanOptions.builder()
+                .includeEntities(includeEntities)
+                .includeRegion(includeRegion)
+                .includePlayerData(includePlayerData)
+                .includeDataPacks(includeDataPacks)
+                .build());
+    }
+
+    /**
+     * Extract player head textures from worlds with a temporary extractor
+     * @param worldPaths Paths to the worlds to scan
+     * @param options Which sources to scan and how
+     * @return A set of the base64-encoded player profiles in the given worlds
+     * @throws IOException If an I/O error occurs
+     */
+    public static Set<String> extractHeads(Set<Path> worldPaths, ScanOptions options) throws IOException {
+        try (HeadExtractor extractor = builder().build()) {
+            return extractor.extract(worldPaths, options);
+        }
+    }
+
+    /**
+     * Extract player head textures from worlds with the default scan options of this extractor
+     * @param worldPaths Paths to the worlds to scan
+     * @return A set of the base64-encoded player profiles in the given worlds
+     * @throws IOException If an I/O error occurs
+     */
+    public Set<String> extract(Set<Path> worldPaths) throws IOException {
+        return extract(worldPaths, defaultOptions);
+    }
+
+    /**
+     * Extract player head textures from worlds
+     * @param worldPaths Paths to the worlds to scan
+     * @param options Which sources to scan and how
+     * @return A set of the base64-encoded player profiles in the given worlds
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalStateException If this extractor is closed
+     */
+    public Set<String> extract(Set<Path> worldPaths, ScanOptions options) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Extractor is closed");
+        }
+        boolean includeEntities = options.includeEntities();
+        boolean includeRegion = options.includeRegion();
+        boolean includePlayerData = options.includePlayerData();
+        boolean includeDataPacks = options.includeDataPacks();
+
         Set<String> heads = ConcurrentHashMap.newKeySet();
         if (!(includeEntities || includeRegion || includePlayerData || includeDataPacks)) return heads;
 
-        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() - 1);
+        int poolSize = options.inflaterPoolSize() == 0 ? parallelism : options.inflaterPoolSize();
+        DecompressionContext.Pool decompressionPool = new DecompressionContext.Pool(poolSize);
+        FileSource.Factory sources = new FileSource.Factory(options.ioMode(), options.maxReadRate(),
+                options.statistics());
+        CpuBudget budget = cpuBudget != 0 ? new CpuBudget(budgetedCores(), options.statistics()) : CpuBudget.UNLIMITED;
+        StoreScheduler stores = new StoreScheduler(options);
+        List<ScanTask> scanTasks = new ArrayList<>();
+        List<RegionFile.Range> pipelineRanges = new ArrayList<>();
+        List<Path> dataPackPaths = new ArrayList<>();
         List<CompletableFuture<?>> tasks = new ArrayList<>();
 
+        // Each distinct candidate is validated once, repeats wait for and reuse its result. The validation runs outside
+        // computeIfAbsent, which would hold a bin lock and serialize unrelated candidates.
+        Map<String, CompletableFuture<Boolean>> validated = new ConcurrentHashMap<>();
         Consumer<String> headConsumer = head -> {
-            if (validateHead(head)) {
-                heads.add(head);
+            CompletableFuture<Boolean> validation = validated.get(head);
+            if (validation == null) {
+                CompletableFuture<Boolean> created = new CompletableFuture<>();
+                validation = validated.computeIfAbsent(head, candidate -> created);
+                if (validation == created) {
+                    options.statistics().candidateValidated();
+                    try {
+                        boolean valid = HeadValidator.validate(head);
+                        if (valid) {
+                            heads.add(head);
+                        }
+                        created.complete(valid);
+                    } catch (RuntimeException e) {
+                        created.completeExceptionally(e);
+                        throw e;
+                    }
+                    return;
+                }
             }
+            options.statistics().cacheHit(validation.join());
         };
 
-        for (Path worldPath : worldPaths) {
-            if (includeEntities || includeRegion) {
-                for (Path path : gatherMCA(worldPath, includeEntities, includeRegion)) {
-                    tasks.add(CompletableFuture.runAsync(() -> processMCA(path, headConsumer), executor));
+        ScanPipeline pipeline = null;
+        Prefetcher prefetcher = null;
+        boolean completed = false;
+        try {
+            for (Path worldPath : worldPaths) {
+                if (includeEntities || includeRegion) {
+                    for (Path path : gatherMCA(worldPath, includeEntities, includeRegion)) {
+                        for (RegionFile.Range range : RegionFile.split(sources, path, options.regionSplitSize())) {
+                            if (options.pipeline()) {
+                                pipelineRanges.add(range);
+                                continue;
+                            }
+                            scanTasks.add(new ScanTask(range.size(), path, range, () -> processMCA(range, sources,
+                                    decompressionPool, budget, options, headConsumer)));
+                        }
+                    }
+                    // Oversized chunks are usually the densest, weigh them by their compressed size like any file
+                    for (Path path : gatherMCC(worldPath, includeEntities, includeRegion)) {
+                        scanTasks.add(new ScanTask(Files.size(path), path, null, () -> processMCC(path, sources,
+                                decompressionPool, budget, options, headConsumer)));
+                    }
+                }
+                if (includePlayerData) {
+                    for (Path path : gatherPlayerData(worldPath)) {
+                        scanTasks.add(new ScanTask(Files.size(path), path, null, () -> processDAT(path, sources,
+                                decompressionPool, budget, options, headConsumer)));
+                    }
+                }
+                if (includeDataPacks) {
+                    dataPackPaths.addAll(gatherDataPacks(worldPath));
+                }
+            }
+
+            // Open every data pack first, their file tasks then interleave with the region work
+            for (Path dataPackPath : dataPackPaths) {
+                tasks.add(processDataPack(dataPackPath, executor, budget, options.statistics(), headConsumer));
+            }
+
+            // Start the largest work first so the end of the scan is made of small tasks
+            scanTasks.sort(Comparator.comparingLong(ScanTask::size).reversed());
+            // Stores with a reader limit are already read by as many lanes as they allow
+            Predicate<ScanTask> prefetchable = task -> task.range() != null && stores.store(task.path()).readers() == 0;
+            List<RegionFile.Range> schedule = scanTasks.stream().filter(prefetchable).map(ScanTask::range).toList();
+            // Prefetching would defeat direct I/O and the read throttle
+            if (options.prefetchDepth() > 0 && !schedule.isEmpty() && options.maxReadRate() == 0
+                    && options.ioMode() != IOMode.DIRECT) {
+                prefetcher = new Prefetcher(schedule, sources, options.prefetchDepth(), options.statistics());
+            }
+            int scheduled = 0;
+            for (ScanTask scanTask : scanTasks) {
+                Runnable action = scanTask.action();
+                if (prefetcher != null && prefetchable.test(scanTask)) {
+                    Prefetcher rangePrefetcher = prefetcher;
+                    int index = scheduled++;
+                    action = () -> {
+                        rangePrefetcher.started(index);
+                        scanTask.action().run();
+                    };
                 }
+                stores.add(scanTask.path(), action);
+            }
+            tasks.addAll(stores.start(executor));
+            if (options.pipeline()) {
+                pipeline = new ScanPipeline(executor, parallelism, sources, decompressionPool, stores, budget, options,
+                        headConsumer);
+                pipelineRanges.sort(Comparator.comparingLong(RegionFile.Range::size).reversed());
+                pipelineRanges.forEach(pipeline::submit);
+            }
+
+            // Wait for all tasks to be complete
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+            completed = true;
+        } finally {
+            if (!completed) {
+                // Tasks that haven't started yet are skipped, so a failed extraction doesn't keep the workers busy
+                tasks.forEach(task -> task.cancel(false));
+                stores.cancel();
             }
-            if (includePlayerData) {
-                for (Path path : gatherPlayerData(worldPath)) {
-                    tasks.add(CompletableFuture.runAsync(() -> processDAT(path, headConsumer), executor));
+            try {
+                if (pipeline != null) {
+                    if (completed) {
+                        pipeline.finish();
+                    } else {
+                        pipeline.abort();
+                    }
+                }
+                if (prefetcher != null) {
+                    prefetcher.close();
                 }
+            } finally {
+                // Release the native memory held by the inflaters
+                decompressionPool.close();
             }
-            if (includeDataPacks) gatherFromDataPacks(worldPath, headConsumer);
         }
 
-        // Wait for all tasks to be complete
-        CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
-        // Shut down the executor service to ensure the threads are killed
-        executor.shutdownNow();
-
         return heads;
     }
 
-    private static List<Path> gatherMCA(Path worldPath, boolean includeEntities, boolean includeRegion)
+    /**
+     * Shut down the worker pool if this extractor created it. An executor passed to the builder is left running.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (ownedExecutor != null) {
+            // Shut down the executor service to ensure the threads are killed
+            ownedExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * A unit of work gathered before the scan starts
+     * @param size The number of bytes the task reads, used to schedule the largest work first
+     * @param path The file the task reads, used to limit the readers of its file store
+     * @param range The region range the task scans, or null if it isn't a region task
+     * @param action The work
+     */
+    private record ScanTask(long size, Path path, RegionFile.Range range, Runnable action) {
+    }
+
+    static List<Path> gatherMCA(Path worldPath, boolean includeEntities, boolean includeRegion)
+            throws IOException {
+        List<Path> mcaPaths = gatherChunkFiles(worldPath, includeEntities, includeRegion);
+        mcaPaths.removeIf(path -> !Files.isRegularFile(path) || !path.getFileName().toString().endsWith("mca"));
+        return mcaPaths;
+    }
+
+    private static List<Path> gatherMCC(Path worldPath, boolean includeEntities, boolean includeRegion)
+            throws IOException {
+        List<Path> mccPaths = gatherChunkFiles(worldPath, includeEntities, includeRegion);
+        mccPaths.removeIf(path -> !Files.isRegularFile(path)
+                || !ExternalChunk.isExternalChunkFile(path.getFileName().toString()));
+        return mccPaths;
+    }
+
+    private static List<Path> gatherChunkFiles(Path worldPath, boolean includeEntities, boolean includeRegion)
             throws IOException {
         Path entitiesPath = worldPath.resolve("entities");
         Path regionPath = worldPath.resolve("region");
 
-        List<Path> mcaPaths = new ArrayList<>();
+        List<Path> paths = new ArrayList<>();
         if (includeEntities && Files.isDirectory(entitiesPath)) {
             try (Stream<Path> stream = Files.list(entitiesPath)) {
-                stream.forEach(mcaPaths::add);
+                stream.forEach(paths::add);
             }
         }
         if (includeRegion && Files.isDirectory(regionPath)) {
             try (Stream<Path> stream = Files.list(regionPath)) {
-                stream.forEach(mcaPaths::add);
+                stream.forEach(paths::add);
             }
         }
-        mcaPaths.removeIf(path -> !Files.isRegularFile(path) || !path.getFileName().toString().endsWith("mca"));
-        return mcaPaths;
+        return paths;
     }
 
     private static List<Path> gatherPlayerData(Path worldPath) throws IOException {
@@ -210,147 +610,257 @@ public class HeadExtractor {
         return dataPaths;
     }
 
-    private static void gatherFromDataPacks(Path worldPath, Consumer<String> headConsumer) throws IOException {
+    private static List<Path> gatherDataPacks(Path worldPath) throws IOException {
         Path dataPacksPath = worldPath.resolve("datapacks");
-        if (!Files.isDirectory(dataPacksPath)) {
-            return;
-        }
 
-        try (Stream<Path> stream = Files.list(dataPacksPath)) {
-            for (Path dataPackPath : stream.toList()) {
-                if (Files.isDirectory(dataPackPath)) {
-                    processDataPack(dataPackPath, headConsumer);
-                } else if (Files.isRegularFile(dataPackPath) && dataPackPath.getFileName().toString().endsWith("zip")) {
-                    try (FileSystem fileSystem = FileSystems.newFileSystem(dataPackPath, Collections.emptyMap())) {
-                        fileSystem.getRootDirectories().forEach(path -> processDataPack(path, headConsumer));
-                    }
-                }
+        List<Path> dataPackPaths = new ArrayList<>();
+        if (Files.isDirectory(dataPacksPath)) {
+            try (Stream<Path> stream = Files.list(dataPacksPath)) {
+                stream.forEach(dataPackPaths::add);
             }
         }
+        dataPackPaths.removeIf(path -> !Files.isDirectory(path)
+                && !(Files.isRegularFile(path) && path.getFileName().toString().endsWith("zip")));
+        return dataPackPaths;
     }
 
-    private static void processDataPack(Path dataPack, Consumer<String> headConsumer) {
-        try (Stream<Path> stream = Files.walk(dataPack)) {
-            for (Path path : stream.toList()) {
-                if (Files.isRegularFile(path)) {
-                    String filename = path.getFileName().toString();
-                    if (filename.endsWith("json") || filename.endsWith("mcfunction")) {
-                        try {
-                            processString(Files.readString(path), headConsumer);
-                        } catch (IOException e) {
-                            System.err.println("Unable to read " + path + " due to exception: " + e);
+    /**
+     * Open and walk a data pack on the executor, then scan each of its files as a separate task
+     * @return A future completed once every file is scanned and the pack is closed
+     */
+    private static CompletableFuture<Void> processDataPack(Path dataPackPath, Executor executor, CpuBudget budget,
+                                                           ExtractionStatistics statistics,
+                                                           Consumer<String> headConsumer) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<CompletableFuture<?>> files = new ArrayList<>();
+            try (FileSystem fileSystem = Files.isDirectory(dataPackPath) ? null
+                    : FileSystems.newFileSystem(dataPackPath, Collections.emptyMap())) {
+                Iterable<Path> roots = fileSystem != null ? fileSystem.getRootDirectories() : List.of(dataPackPath);
+                for (Path root : roots) {
+                    try (Stream<Path> stream = Files.walk(root)) {
+                        for (Path path : stream.toList()) {
+                            String filename = path.getFileName() != null ? path.getFileName().toString() : "";
+                            if ((filename.endsWith("json") || filename.endsWith("mcfunction"))
+                                    && Files.isRegularFile(path)) {
+                                files.add(processDataPackFile(path, fileSystem != null, executor, budget, statistics,
+                                        headConsumer));
+                            }
                         }
+                    } catch (IOException | RuntimeException e) {
+                        reportFailure(statistics, root, -1, e);
                     }
                 }
+            } catch (IOException | RuntimeException e) {
+                reportFailure(statistics, dataPackPath, -1, e);
             }
-        } catch (IOException e) {
-            System.err.println("Unable to fully process " + dataPack + " due to exception: " + e);
-        }
+            return CompletableFuture.allOf(files.toArray(new CompletableFuture<?>[0]));
+        }, executor).thenCompose(Function.identity());
     }
 
-    private static void processDAT(Path datPath, Consumer<String> headConsumer) {
+    private static CompletableFuture<Void> processDataPackFile(Path path, boolean zipped, Executor executor,
+                                                               CpuBudget budget, ExtractionStatistics statistics,
+                                                               Consumer<String> headConsumer) {
+        if (!zipped) {
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    processDataPackString(Files.readString(path), budget, statistics, headConsumer);
+                } catch (IOException | RuntimeException e) {
+                    reportFailure(statistics, path, -1, e);
+                }
+            }, executor);
+        }
+        // A zip pack's file system is closed once its walk finishes, so its files are read now and scanned later
+        String contents;
         try {
-            processTag(NBTIO.readFile(datPath.toFile()), headConsumer);
-        } catch (IOException e) {
-            System.err.println("Unable to fully process " + datPath + " due to exception: " + e);
+            contents = Files.readString(path);
+        } catch (IOException | RuntimeException e) {
+            reportFailure(statistics, path, -1, e);
+            return CompletableFuture.completedFuture(null);
         }
+        return CompletableFuture.runAsync(() -> {
+            try {
+                processDataPackString(contents, budget, statistics, headConsumer);
+            } catch (IOException | RuntimeException e) {
+                reportFailure(statistics, path, -1, e);
+            }
+        }, executor);
     }
 
-    private static void processMCA(Path mcaPath, Consumer<String> headConsumer) {
-        try (FileChannel channel = FileChannel.open(mcaPath, StandardOpenOption.READ)) {
-            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
-            buffer.order(ByteOrder.BIG_ENDIAN);
-            for (int i = 0; i < 1024; i++) {
-                int location = buffer.getInt(4 * i);
-                if (location == 0) {
-                    // Chunk is not present
-                    continue;
-                }
-
-                int offset = ((location >> 8) & 0xFFFFFF) * 4096;
-                int length = buffer.getInt(offset) - 1;
-                byte compressionType = buffer.get(offset + 4);
+    private static void processDataPackString(String contents, CpuBudget budget, ExtractionStatistics statistics,
+                                              Consumer<String> headConsumer) throws IOException {
+        processString(contents, headConsumer, statistics);
+        budget.pace();
+    }
 
-                byte[] payload = new byte[length];
-                buffer.get(offset + 5, payload);
+    private static void processDAT(Path datPath, FileSource.Factory sources,
+                                   DecompressionContext.Pool decompressionPool, CpuBudget budget,
+                                   ScanOptions options, Consumer<String> headConsumer) {
+        try (FileSource source = sources.open(datPath);
+             DecompressionContext context = decompressionPool.acquire()) {
+            ByteBuffer compressed = source.read(0, (int) Math.min(source.size(), Integer.MAX_VALUE));
+            // Player data is a GZip stream, the same format as compression type 1 in region files
+            new NBTScanner(options, headConsumer).scan(context.decompress(compressed, 1));
+            budget.pace();
+        } catch (IOException | RuntimeException e) {
+            reportFailure(options.statistics(), datPath, -1, e);
+        }
+    }
 
-                InputStream inputStream = new ByteArrayInputStream(payload);
-                if (compressionType == 1) {
-                    inputStream = new GZIPInputStream(inputStream);
-                } else if (compressionType == 2) {
-                    inputStream = new InflaterInputStream(inputStream);
-                }
-                inputStream = new BufferedInputStream(inputStream);
-                processTag(NBTIO.readTag(inputStream), headConsumer);
-            }
-        } catch (IOException e) {
-            System.err.println("Unable to fully process " + mcaPath + " due to exception: " + e);
-        }
-    }
-
-    private static void processTag(Tag rootTag, Consumer<String> headConsumer) {
-        Deque<Tag> tags = new ArrayDeque<>();
-        tags.add(rootTag);
-        while (!tags.isEmpty()) {
-            Tag tag = tags.pop();
-            if (tag instanceof CompoundTag compoundTag) {
-                tags.addAll(compoundTag.values());
-            } else if (tag instanceof ListTag listTag) {
-                Class<?> elementType = listTag.getElementType();
-                if (elementType != StringTag.class && elementType != ListTag.class && elementType != CompoundTag.class) {
-                    // The ListTag can't store player profiles
-                    continue;
+    private static void processMCA(RegionFile.Range range, FileSource.Factory sources,
+                                   DecompressionContext.Pool decompressionPool, CpuBudget budget,
+                                   ScanOptions options, Consumer<String> headConsumer) {
+        Path mcaPath = range.path();
+        ExtractionStatistics statistics = options.statistics();
+        try (FileSource source = sources.open(mcaPath);
+             DecompressionContext context = decompressionPool.acquire()) {
+            NBTScanner scanner = new NBTScanner(options, headConsumer);
+            RegionFile.read(source, range, (index, payload) -> {
+                // Charge the previous chunk, the work after the last one is charged to the thread's next task
+                budget.pace();
+                byte compressionType = payload.get();
+                if (ExternalChunk.isExternal(compressionType)) {
+                    checkExternalChunk(statistics, mcaPath, index);
+                    return;
                 }
-                if (listTag.getName().equals("textures")) { // Pre-1.20.5 item component rework
-                    if (listTag.size() != 0 && listTag.get(0) instanceof CompoundTag texture) {
-                        if (texture.get("Value") instanceof StringTag valueTag) {
-                            headConsumer.accept(valueTag.getValue());
-                        }
-                    }
-                } else if (listTag.getName().equals("properties")) { // Item component storage system
-                    if (listTag.size() != 0 && listTag.get(0) instanceof CompoundTag texture) {
-                        if (texture.get("name") instanceof StringTag nameTag &&
-                                texture.get("value") instanceof StringTag valueTag) {
-                            if (nameTag.getValue().equals("textures")) headConsumer.accept(valueTag.getValue());
-                        }
-                    }
-                } else { // Scan children of this ListTag
-                    listTag.forEach(tags::addLast);
+                ChunkInput chunk = context.decompress(payload, compressionType);
+                if (!ChunkPrefilter.mayContainHeads(chunk.data(), chunk.length())) {
+                    statistics.chunkSkipped();
+                    return;
                 }
-            } else if (tag instanceof StringTag stringTag) {
-                processString(stringTag.getValue(), headConsumer);
+                statistics.chunkScanned();
+                scanner.scan(chunk);
+            }, (index, e) -> reportFailure(statistics, mcaPath, index, e));
+        } catch (IOException | RuntimeException e) {
+            reportFailure(statistics, mcaPath, -1, e);
+        }
+    }
+
+    private static void processMCC(Path mccPath, FileSource.Factory sources,
+                                   DecompressionContext.Pool decompressionPool, CpuBudget budget,
+                                   ScanOptions options, Consumer<String> headConsumer) {
+        try (DecompressionContext context = decompressionPool.acquire()) {
+            // External chunks are streamed, so they can't be prefiltered as a whole
+            if (ExternalChunk.scan(mccPath, sources, context, new NBTScanner(options, headConsumer))) {
+                options.statistics().externalChunkScanned();
             }
+            budget.pace();
+        } catch (IOException | RuntimeException e) {
+            reportFailure(options.statistics(), mccPath, -1, e);
         }
     }
 
-    private static void processString(String string, Consumer<String> headConsumer) {
-        Matcher m = BASE64_PATTERN.matcher(string);
-        while (m.find()) {
-            headConsumer.accept(m.group(1));
+    /**
+     * Report an external chunk whose file is missing. Present files are scanned as their own tasks.
+     */
+    static void checkExternalChunk(ExtractionStatistics statistics, Path mcaPath, int index) {
+        Path mccPath = ExternalChunk.path(mcaPath, index);
+        if (!Files.isRegularFile(mccPath)) {
+            reportFailure(statistics, mcaPath, index, new FileNotFoundException("External chunk file "
+                    + mccPath.getFileName() + " is missing"));
         }
     }
 
-    private static boolean validateHead(String head) {
-        try {
-            JsonNode node = MAPPER.readTree(Base64.getDecoder().decode(head));
-            if (!node.isObject()) {
-                return false;
-            }
+    /**
+     * Record a chunk that was left out of the scan, the scan carries on with the next one
+     * @param statistics Collects the failed chunks
+     * @param path The file holding the chunk
+     * @param index The chunk index, or -1 if the failure affected the rest of the file
+     * @param exception The cause
+     */
+    static void reportFailure(ExtractionStatistics statistics, Path path, int index, Exception exception) {
+        statistics.chunkFailed(new FailedChunk(path, index, exception.toString()));
+        if (index == -1) {
+            System.err.println("Unable to fully process " + path + " due to exception: " + exception);
+        } else {
+            System.err.println("Skipped chunk " + index + " of " + path + " due to exception: " + exception);
+        }
+    }
 
-            JsonNode textures = node.get("textures");
-            if (textures == null || !textures.isObject()) {
-                return false;
+    static void processString(String string, Consumer<String> headConsumer, ExtractionStatistics statistics) {
+        if (!ChunkPrefilter.mayContainCandidate(string)) {
+            statistics.stringRejected();
+            return;
+        }
+        statistics.stringMatched();
+        Base64Scanner scanner = new Base64Scanner().reset(string);
+        while (scanner.find()) {
+            headConsumer.accept(scanner.candidate());
+        }
+    }
+
+    static void processString(byte[] data, int offset, int length, Consumer<String> headConsumer,
+                              ExtractionStatistics statistics) {
+        if (!ChunkPrefilter.mayContainCandidate(data, offset, length)) {
+            statistics.stringRejected();
+            return;
+        }
+        statistics.stringMatched();
+        Base64Scanner scanner = new Base64Scanner().reset(data, offset, length);
+        while (scanner.find()) {
+            headConsumer.accept(scanner.candidate());
+        }
+    }
+
+    public static final class Builder {
+        private Executor executor;
+        private int parallelism;
+        private double cpuBudget;
+        private ScanOptions options;
+
+        private Builder() {
+        }
+
+        /**
+         * Run scan tasks on an existing executor instead of a pool owned by the extractor. The executor is not shut
+         * down when the extractor is closed.
+         * @param executor The executor to run scan tasks on, or null to create a pool
+         * @return This builder
+         */
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Set the number of worker threads of the pool owned by the extractor. With an external executor, this is
+         * the number of decompression contexts and pipeline threads to size for.
+         * @param parallelism The number of workers, or 0 to use one less than the number of processors (at least 1)
+         * @return This builder
+         */
+        public Builder parallelism(int parallelism) {
+            if (parallelism < 0) {
+                throw new IllegalArgumentException("Parallelism must not be negative: " + parallelism);
             }
+            this.parallelism = parallelism;
+            return this;
+        }
 
-            JsonNode skin = textures.get("SKIN");
-            if (skin == null || !textures.isObject()) {
-                return false;
+        /**
+         * Limit the CPU time the workers use together to a fraction of the processors, so a scan next to a live server
+         * leaves it room. Unless the parallelism is set, the owned pool gets no more workers than budgeted cores. Its
+         * workers run at low priority, and every worker pauses between chunks whenever the budget is exceeded.
+         * @param cpuBudget The fraction of the processors to use, greater than 0 and at most 1, or 0 for no limit
+         * @return This builder
+         */
+        public Builder cpuBudget(double cpuBudget) {
+            if (!(cpuBudget >= 0 && cpuBudget <= 1)) {
+                throw new IllegalArgumentException("CPU budget must be between 0 and 1: " + cpuBudget);
             }
+            this.cpuBudget = cpuBudget;
+            return this;
+        }
+
+        /**
+         * @param options The options used by {@link HeadExtractor#extract(Set)}, or null for the defaults
+         * @return This builder
+         */
+        public Builder options(ScanOptions options) {
+            this.options = options;
+            return this;
+        }
 
-            JsonNode url = skin.get("url");
-            return url != null && url.isTextual();
-        } catch (Exception e) {
-            return false;
+        public HeadExtractor build() {
+            return new HeadExtractor(this);
         }
     }
 }
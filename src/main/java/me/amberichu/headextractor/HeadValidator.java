@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Checks whether a base64-encoded player profile has a textual {@code textures.SKIN.url}.
+ * <p>
+ * The profile is decoded into a buffer reused by each thread and its JSON is read with a streaming parser without
+ * building a tree. Only the path to the skin URL is followed; every other value is skipped, which still checks that it
+ * is well-formed.
+ * <p>
+ * The result matches reading the JSON with Jackson's default settings: the whole root value must be well-formed, any
+ * content after it is ignored, and when a key is repeated the last value wins.
+ */
+final class HeadValidator {
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private static final String[] PATH = {"textures", "SKIN", "url"};
+
+    // Profiles are a few hundred bytes, the buffer grows for the rare larger candidate
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[INITIAL_BUFFER_SIZE]);
+
+    private HeadValidator() {
+    }
+
+    /**
+     * @param head A candidate base64-encoded player profile
+     * @return Whether the candidate decodes to a JSON object with a textual textures.SKIN.url
+     */
+    static boolean validate(CharSequence head) {
+        // Each group of four characters decodes to three bytes, a trailing partial group to at most two
+        int capacity = head.length() / 4 * 3 + 2;
+        byte[] json = BUFFER.get();
+        if (json.length < capacity) {
+            json = new byte[Math.max(capacity, json.length * 2)];
+            BUFFER.set(json);
+        }
+        int length = decode(head, json);
+        if (length == -1) {
+            return false;
+        }
+        try (JsonParser parser = JSON.createParser(json, 0, length)) {
+            return parser.nextToken() == JsonToken.START_OBJECT && readObject(parser, 0);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Decode base64 into a buffer, accepting exactly what {@link java.util.Base64#getDecoder()} accepts: the basic
+     * alphabet, with the padding of the last group optional but complete when present, and nothing after it
+     * @param base64 The base64 to decode
+     * @param dst The buffer to decode into, large enough for the decoded bytes
+     * @return The number of decoded bytes, or -1 if the input isn't valid base64
+     */
+    static int decode(CharSequence base64, byte[] dst) {
+        int length = base64.length();
+        int sp = 0;
+        int dp = 0;
+        int bits = 0;
+        int shift = 18;
+        while (sp < length) {
+            char c = base64.charAt(sp++);
+            int value = value(c);
+            if (value == -1) {
+                if (c != '=') {
+                    return -1;
+                }
+                // Padding can't start a group, and after two characters it must be doubled
+                if (shift == 18 || (shift == 6 && (sp == length || base64.charAt(sp++) != '='))) {
+                    return -1;
+                }
+                break;
+            }
+            bits |= value << shift;
+            shift -= 6;
+            if (shift < 0) {
+                dst[dp++] = (byte) (bits >> 16);
+                dst[dp++] = (byte) (bits >> 8);
+                dst[dp++] = (byte) bits;
+                bits = 0;
+                shift = 18;
+            }
+        }
+        if (shift == 12 || sp < length) {
+            // A single character of the last group holds less than a byte, and nothing may follow the padding
+            return -1;
+        }
+        if (shift == 6) {
+            dst[dp++] = (byte) (bits >> 16);
+        } else if (shift == 0) {
+            dst[dp++] = (byte) (bits >> 16);
+            dst[dp++] = (byte) (bits >> 8);
+        }
+        return dp;
+    }
+
+    private static int value(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        } else if (c >= 'a' && c <= 'z') {
+            return c - 'a' + 26;
+        } else if (c >= '0' && c <= '9') {
+            return c - '0' + 52;
+        } else if (c == '+') {
+            return 62;
+        } else if (c == '/') {
+            return 63;
+        }
+        return -1;
+    }
+
+    /**
+     * Read the rest of an object on the path to the skin URL
+     * @param parser The parser, positioned at the start of the object
+     * @param level The index in {@link #PATH} of the key to follow
+     * @return Whether the last value for the key satisfies the rest of the path
+     */
+    private static boolean readObject(JsonParser parser, int level) throws IOException {
+        boolean result = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            boolean onPath = PATH[level].equals(parser.currentName());
+            JsonToken value = parser.nextToken();
+            if (onPath && level + 1 < PATH.length && value == JsonToken.START_OBJECT) {
+                result = readObject(parser, level + 1);
+            } else {
+                if (onPath) {
+                    result = level + 1 == PATH.length && value == JsonToken.VALUE_STRING;
+                }
+                parser.skipChildren();
+            }
+        }
+        // Anything other than the end of the object has already been rejected by the parser
+        return result;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Compares the {@link IOMode}s by running the same extraction with each of them.
+ * <p>
+ * An untimed extraction runs first so that every mode reads from an equally warm page cache. To compare cold reads,
+ * drop the page cache between runs of a single mode instead.
+ */
+final class IOBenchmark {
+    private static final IOMode[] MODES = {IOMode.MAPPED, IOMode.READ, IOMode.ASYNC, IOMode.DIRECT};
+
+    private IOBenchmark() {
+    }
+
+    /**
+     * @param extractor The extractor to run the extractions on
+     * @param worldPaths The worlds to scan
+     * @param options The options to scan with, the I/O mode and statistics are replaced for each run
+     * @param iterations The number of timed extractions per mode
+     * @param out Receives one summary line per mode
+     * @throws IOException If an I/O error occurs
+     */
+    static void run(HeadExtractor extractor, Set<Path> worldPaths, ScanOptions.Builder options, int iterations,
+                    PrintStream out) throws IOException {
+        extractor.extract(worldPaths, options.ioMode(IOMode.AUTO).statistics(null).build());
+
+        for (IOMode mode : MODES) {
+            long[] nanos = new long[iterations];
+            long bytes = 0;
+            int heads = 0;
+            for (int i = 0; i < iterations; i++) {
+                ExtractionStatistics statistics = new ExtractionStatistics();
+                ScanOptions scanOptions = options.ioMode(mode).statistics(statistics).build();
+                long start = System.nanoTime();
+                heads = extractor.extract(worldPaths, scanOptions).size();
+                nanos[i] = System.nanoTime() - start;
+                bytes = statistics.bytesRead();
+            }
+            Arrays.sort(nanos);
+            long median = nanos[iterations / 2];
+            out.printf(Locale.ROOT, "%-6s best %8.1f ms, median %8.1f ms, %8.1f MiB/s, %d bytes read, %d heads%n",
+                    mode.name().toLowerCase(Locale.ROOT), nanos[0] / 1e6, median / 1e6,
+                    bytes / (1024.0 * 1024.0) / (median / 1e9), bytes, heads);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+/**
+ * How region and player data files are read
+ */
+public enum IOMode {
+    /**
+     * Memory-map local files and use positional reads on network file systems and 32-bit JVMs
+     */
+    AUTO,
+    /**
+     * Memory-map each file and read chunks straight from the mapping
+     */
+    MAPPED,
+    /**
+     * Read with {@link java.nio.channels.FileChannel#read(java.nio.ByteBuffer, long)} into pooled direct buffers
+     */
+    READ,
+    /**
+     * Read with {@link java.nio.channels.AsynchronousFileChannel} into pooled direct buffers, keeping several of the
+     * following reads of a region file in flight while the current one is scanned
+     */
+    ASYNC,
+    /**
+     * Read with direct I/O into block-aligned buffers, bypassing the page cache so that a scan doesn't evict the
+     * working set of other processes such as a live server. Falls back to {@link #READ} where the file system doesn't
+     * support direct I/O.
+     */
+    DIRECT
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only file mappings that are released as soon as their file is done, where the JDK allows it.
+ * <p>
+ * On Java 22 and later each file is mapped into its own confined {@code Arena}, and closing the mapping closes the
+ * arena, which unmaps the file at once and makes any stale buffer fail with an exception. A mapping is opened, read
+ * and closed by the one worker scanning its file, so it never needs to be shared between threads. Older JDKs leave the
+ * mapping for the garbage collector as it always was, unless the {@value #UNSAFE_UNMAP_PROPERTY} system property is
+ * {@code true}: mappings are then unmapped through {@code sun.misc.Unsafe.invokeCleaner}, which doesn't guard stale
+ * buffers, so a buffer used after its mapping is closed crashes the JVM.
+ */
+final class Mapping implements AutoCloseable {
+    static final String UNSAFE_UNMAP_PROPERTY = "headextractor.unsafeUnmap";
+
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final Unmapper UNMAPPER = Unmapper.find();
+
+    private final ByteBuffer buffer;
+    private final Object owner;
+    private final ExtractionStatistics statistics;
+    private final Cleaner.Cleanable cleanable;
+    private boolean closed;
+
+    private Mapping(ByteBuffer buffer, Object owner, ExtractionStatistics statistics) {
+        this.buffer = buffer;
+        this.owner = owner;
+        this.statistics = statistics;
+        statistics.mapped();
+        // Without an unmapper the mapping lives until the buffer is collected, count it as live until then
+        this.cleanable = UNMAPPER == Unmapper.NONE ? CLEANER.register(buffer, statistics::unmapped) : null;
+    }
+
+    /**
+     * Map a whole file read-only
+     * @param channel The file, which may be closed once it is mapped
+     * @param statistics Counts the live mappings
+     * @return The mapping, which must be closed once the file is done
+     * @throws IOException If the file can't be mapped
+     */
+    static Mapping map(FileChannel channel, ExtractionStatistics statistics) throws IOException {
+        return UNMAPPER.map(channel, 0, channel.size(), statistics);
+    }
+
+    /**
+     * Map part of a file read-only
+     * @param channel The file, which may be closed once it is mapped
+     * @param position The offset of the first mapped byte
+     * @param size The number of bytes to map
+     * @param statistics Counts the live mappings
+     * @return The mapping, which must be closed once the bytes are done
+     * @throws IOException If the file can't be mapped
+     */
+    static Mapping map(FileChannel channel, long position, long size, ExtractionStatistics statistics)
+            throws IOException {
+        return UNMAPPER.map(channel, position, size, statistics);
+    }
+
+    /**
+     * @return How mappings are released on this JDK
+     */
+    static String releaseMethod() {
+        return UNMAPPER.description;
+    }
+
+    /**
+     * @return The mapped bytes, valid until this mapping is closed
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Fault the mapped pages into memory without copying them, see {@link MappedByteBuffer#load()}
+     */
+    void load() {
+        if (buffer instanceof MappedByteBuffer mapped) {
+            mapped.load();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (cleanable == null) {
+            UNMAPPER.unmap(this);
+            statistics.unmapped();
+        }
+    }
+
+    private enum Unmapper {
+        ARENA("unmapped on close through a scoped arena") {
+            private Method ofConfined;
+            private Method mapInto;
+            private Method asByteBuffer;
+            private Method close;
+
+            @Override
+            boolean init() throws ReflectiveOperationException {
+                if (Runtime.version().feature() < 22) {
+                    // The foreign memory API is a preview before Java 22
+                    return false;
+                }
+                Class<?> arena = Class.forName("java.lang.foreign.Arena");
+                ofConfined = arena.getMethod("ofConfined");
+                mapInto = FileChannel.class.getMethod("map", FileChannel.MapMode.class, long.class, long.class,
+                        arena);
+                asByteBuffer = Class.forName("java.lang.foreign.MemorySegment").getMethod("asByteBuffer");
+                close = arena.getMethod("close");
+                return true;
+            }
+
+            @Override
+            Mapping map(FileChannel channel, long position, long size, ExtractionStatistics statistics)
+                    throws IOException {
+                Object arena = invoke(ofConfined, null);
+                try {
+                    Object segment = invoke(mapInto, channel, FileChannel.MapMode.READ_ONLY, position, size, arena);
+                    return new Mapping((ByteBuffer) invoke(asByteBuffer, segment), arena, statistics);
+                } catch (IOException | RuntimeException e) {
+                    invoke(close, arena);
+                    throw e;
+                }
+            }
+
+            @Override
+            void unmap(Mapping mapping) throws IOException {
+                invoke(close, mapping.owner);
+            }
+        },
+        CLEANER("unmapped on close through the buffer cleaner") {
+            private Object unsafe;
+            private Method invokeCleaner;
+
+            @Override
+            boolean init() throws ReflectiveOperationException {
+                if (!Boolean.getBoolean(UNSAFE_UNMAP_PROPERTY)) {
+                    // A stale buffer crashes the JVM instead of throwing, so this is only used when asked for
+                    return false;
+                }
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                return true;
+            }
+
+            @Override
+            void unmap(Mapping mapping) throws IOException {
+                invoke(invokeCleaner, unsafe, mapping.buffer);
+            }
+        },
+        NONE("released by the garbage collector") {
+            @Override
+            boolean init() {
+                return true;
+            }
+
+            @Override
+            void unmap(Mapping mapping) {
+            }
+        };
+
+        private final String description;
+
+        Unmapper(String description) {
+            this.description = description;
+        }
+
+        abstract boolean init() throws ReflectiveOperationException;
+
+        Mapping map(FileChannel channel, long position, long size, ExtractionStatistics statistics)
+                throws IOException {
+            return new Mapping(channel.map(FileChannel.MapMode.READ_ONLY, position, size), null, statistics);
+        }
+
+        abstract void unmap(Mapping mapping) throws IOException;
+
+        private static Unmapper find() {
+            for (Unmapper unmapper : values()) {
+                try {
+                    if (unmapper.init()) {
+                        return unmapper;
+                    }
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    // Not available on this JDK, or not accessible
+                }
+            }
+            return NONE;
+        }
+
+        private static Object invoke(Method method, Object target, Object... args) throws IOException {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException ioException) {
+                    throw ioException;
+                }
+                if (cause instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                if (cause instanceof Error error) {
+                    throw error;
+                }
+                throw new IOException(cause);
+            } catch (IllegalAccessException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Event-based NBT reader that walks the binary format once without building a tag tree.
+ * <p>
+ * Only string values are decoded. Tag names are compared as raw bytes, and numeric values and arrays are skipped
+ * by their length.
+ * <p>
+ * In targeted mode, only the subtrees of the root compound that can hold items or profiles are scanned, such as block
+ * entities, entities and inventories, and those are scanned exhaustively. This only applies once the root is
+ * recognized as a chunk, entity chunk or player data by one of its keys. Since keys come in any order, the other
+ * subtrees are skipped as they come and scanned afterwards if the layout turns out to be unknown. Streamed input can't
+ * be revisited, so it is always scanned exhaustively.
+ */
+final class NBTScanner {
+    private static final int TAG_END = 0;
+    private static final int TAG_BYTE = 1;
+    private static final int TAG_SHORT = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_FLOAT = 5;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_BYTE_ARRAY = 7;
+    private static final int TAG_STRING = 8;
+    private static final int TAG_LIST = 9;
+    private static final int TAG_COMPOUND = 10;
+    private static final int TAG_INT_ARRAY = 11;
+    private static final int TAG_LONG_ARRAY = 12;
+
+    // Compounds and lists nested deeper than this are rejected, as Minecraft does, rather than overflowing the stack
+    static final int MAX_DEPTH = 512;
+
+    private static final byte[] TEXTURES = ascii("textures");
+    private static final byte[] PROPERTIES = ascii("properties");
+    private static final byte[] VALUE = ascii("Value");
+    private static final byte[] NAME_LOWER = ascii("name");
+    private static final byte[] VALUE_LOWER = ascii("value");
+    private static final byte[] LEVEL = ascii("Level");
+
+    // Root subtrees that can hold items or profiles
+    private static final byte[][] SCANNED = {
+            // Chunks since 1.18, proto-chunks keep their entities too
+            ascii("block_entities"), ascii("entities"),
+            // Entity chunks since 1.17
+            ascii("Entities"),
+            // Player data
+            ascii("Inventory"), ascii("EnderItems"), ascii("equipment"), ascii("RootVehicle"),
+            ascii("ShoulderEntityLeft"), ascii("ShoulderEntityRight"), ascii("ender_pearls")
+    };
+    // Subtrees of the pre-1.18 Level compound that can hold items or profiles
+    private static final byte[][] LEVEL_SCANNED = {ascii("TileEntities"), ascii("Entities")};
+    // Root keys that only appear in a known layout
+    private static final byte[][] LAYOUT_KEYS = {
+            // Chunks since 1.18
+            ascii("sections"), ascii("Status"), ascii("xPos"),
+            // Entity chunks
+            ascii("Position"),
+            // Player data
+            ascii("playerGameType"), ascii("abilities"), ascii("EnderItems")
+    };
+
+    private final Consumer<String> headConsumer;
+    private final boolean targeted;
+    private final ExtractionStatistics statistics;
+
+    private DataInput in;
+    private byte[] name = new byte[64];
+    private int nameLength;
+    private int[] skipped = new int[16];
+    private int depth;
+
+    NBTScanner(ScanOptions options, Consumer<String> headConsumer) {
+        this.headConsumer = headConsumer;
+        this.targeted = options.targetedTraversal();
+        this.statistics = options.statistics();
+    }
+
+    /**
+     * Scan a single named root tag
+     * @param in The uncompressed NBT data
+     * @throws IOException If the data is truncated, malformed or nested deeper than {@link #MAX_DEPTH}
+     */
+    void scan(DataInput in) throws IOException {
+        this.in = in;
+        this.depth = 0;
+        try {
+            int type = in.readUnsignedByte();
+            if (type == TAG_END) {
+                return;
+            }
+            readName();
+            if (type == TAG_LIST) {
+                scanList(nameEquals(TEXTURES), nameEquals(PROPERTIES));
+            } else if (type == TAG_COMPOUND && targeted) {
+                scanRoot();
+            } else {
+                scanPayload(type);
+            }
+        } finally {
+            this.in = null;
+        }
+    }
+
+    private void scanPayload(int type) throws IOException {
+        switch (type) {
+            case TAG_STRING -> scanString();
+            case TAG_LIST -> scanList(false, false);
+            case TAG_COMPOUND -> scanCompound();
+            default -> skipPayload(type);
+        }
+    }
+
+    private void scanString() throws IOException {
+        if (in instanceof ChunkInput chunk) {
+            // Search the modified UTF-8 bytes in place, the characters of a candidate are all ASCII
+            int length = chunk.readUnsignedShort();
+            HeadExtractor.processString(chunk.data(), chunk.advance(length), length, headConsumer, statistics);
+        } else {
+            HeadExtractor.processString(in.readUTF(), headConsumer, statistics);
+        }
+    }
+
+    private void scanCompound() throws IOException {
+        enter();
+        int type;
+        while ((type = in.readUnsignedByte()) != TAG_END) {
+            readName();
+            scanEntry(type);
+        }
+        depth--;
+    }
+
+    /**
+     * Scan the payload of a compound entry whose name was just read
+     */
+    private void scanEntry(int type) throws IOException {
+        if (type == TAG_LIST) {
+            scanList(nameEquals(TEXTURES), nameEquals(PROPERTIES));
+        } else {
+            scanPayload(type);
+        }
+    }
+
+    private void scanRoot() throws IOException {
+        if (!(in instanceof ChunkInput chunk)) {
+            scanCompound();
+            return;
+        }
+        enter();
+        boolean recognized = false;
+        int skippedCount = 0;
+        while (true) {
+            int entry = chunk.position();
+            int type = in.readUnsignedByte();
+            if (type == TAG_END) {
+                break;
+            }
+            readName();
+            recognized |= nameIn(LAYOUT_KEYS);
+            if (type == TAG_COMPOUND && nameEquals(LEVEL)) {
+                // Chunks before 1.18
+                recognized = true;
+                scanLevel();
+            } else if (nameIn(SCANNED)) {
+                scanEntry(type);
+            } else {
+                if (skippedCount == skipped.length) {
+                    skipped = Arrays.copyOf(skipped, skippedCount * 2);
+                }
+                skipped[skippedCount++] = entry;
+                skipPayload(type);
+            }
+        }
+
+        if (!recognized) {
+            // Unknown layout, scan what was skipped after all
+            int end = chunk.position();
+            for (int i = 0; i < skippedCount; i++) {
+                chunk.seek(skipped[i]);
+                int type = in.readUnsignedByte();
+                readName();
+                scanEntry(type);
+            }
+            chunk.seek(end);
+        }
+        depth--;
+    }
+
+    private void scanLevel() throws IOException {
+        enter();
+        int type;
+        while ((type = in.readUnsignedByte()) != TAG_END) {
+            readName();
+            if (nameIn(LEVEL_SCANNED)) {
+                scanEntry(type);
+            } else {
+                skipPayload(type);
+            }
+        }
+        depth--;
+    }
+
+    private void scanList(boolean textures, boolean properties) throws IOException {
+        int elementType = in.readUnsignedByte();
+        int size = in.readInt();
+        if (size <= 0) {
+            return;
+        }
+        if (elementType != TAG_STRING && elementType != TAG_LIST && elementType != TAG_COMPOUND) {
+            // The list can't store player profiles
+            skipList(elementType, size);
+            return;
+        }
+
+        enter();
+        if (textures || properties) {
+            if (elementType == TAG_COMPOUND) {
+                scanTexture(properties);
+                skipList(elementType, size - 1);
+            } else {
+                skipList(elementType, size);
+            }
+        } else {
+            // Scan children of this list
+            for (int i = 0; i < size; i++) {
+                scanPayload(elementType);
+            }
+        }
+        depth--;
+    }
+
+    private void scanTexture(boolean properties) throws IOException {
+        String value = null;
+        String propertyName = null;
+        enter();
+        int type;
+        while ((type = in.readUnsignedByte()) != TAG_END) {
+            readName();
+            if (type != TAG_STRING) {
+                skipPayload(type);
+            } else if (!properties && nameEquals(VALUE)) { // Pre-1.20.5 item component rework
+                value = in.readUTF();
+            } else if (properties && nameEquals(VALUE_LOWER)) { // Item component storage system
+                value = in.readUTF();
+            } else if (properties && nameEquals(NAME_LOWER)) {
+                propertyName = in.readUTF();
+            } else {
+                skipString();
+            }
+        }
+        depth--;
+
+        if (value != null && (!properties || "textures".equals(propertyName))) {
+            headConsumer.accept(value);
+        }
+    }
+
+    private void skipPayload(int type) throws IOException {
+        switch (type) {
+            case TAG_BYTE -> skipFully(1);
+            case TAG_SHORT -> skipFully(2);
+            case TAG_INT, TAG_FLOAT -> skipFully(4);
+            case TAG_LONG, TAG_DOUBLE -> skipFully(8);
+            case TAG_BYTE_ARRAY -> skipFully(checkLength(in.readInt()));
+            case TAG_STRING -> skipString();
+            case TAG_LIST -> skipList(in.readUnsignedByte(), in.readInt());
+            case TAG_COMPOUND -> {
+                enter();
+                int childType;
+                while ((childType = in.readUnsignedByte()) != TAG_END) {
+                    skipString(); // Name
+                    skipPayload(childType);
+                }
+                depth--;
+            }
+            case TAG_INT_ARRAY -> skipFully(4L * checkLength(in.readInt()));
+            case TAG_LONG_ARRAY -> skipFully(8L * checkLength(in.readInt()));
+            default -> throw new IOException("Unknown tag type " + type);
+        }
+    }
+
+    private void skipList(int elementType, int size) throws IOException {
+        if (size <= 0) {
+            return;
+        }
+        switch (elementType) {
+            case TAG_BYTE -> skipFully(size);
+            case TAG_SHORT -> skipFully(2L * size);
+            case TAG_INT, TAG_FLOAT -> skipFully(4L * size);
+            case TAG_LONG, TAG_DOUBLE -> skipFully(8L * size);
+            default -> {
+                enter();
+                for (int i = 0; i < size; i++) {
+                    skipPayload(elementType);
+                }
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Enter a compound or a list of compounds or lists. Leaving it decrements {@link #depth}, a failed scan leaves it
+     * as is since it is reset by the next scan.
+     */
+    private void enter() throws IOException {
+        if (++depth > MAX_DEPTH) {
+            throw new IOException("NBT is nested deeper than " + MAX_DEPTH + " levels");
+        }
+    }
+
+    private void skipString() throws IOException {
+        skipFully(in.readUnsignedShort());
+    }
+
+    private void skipFully(long length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes((int) Math.min(length, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                // skipBytes may stop early without reaching the end, so probe with a read
+                in.readByte();
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    private void readName() throws IOException {
+        int length = in.readUnsignedShort();
+        if (length > name.length) {
+            name = new byte[Math.max(length, name.length * 2)];
+        }
+        in.readFully(name, 0, length);
+        nameLength = length;
+    }
+
+    private boolean nameIn(byte[][] names) {
+        for (byte[] expected : names) {
+            if (nameEquals(expected)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean nameEquals(byte[] expected) {
+        if (nameLength != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < nameLength; i++) {
+            if (name[i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < 0) {
+            throw new EOFException("Negative array length " + length);
+        }
+        return length;
+    }
+
+    private static byte[] ascii(String string) {
+        return string.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Loads the next scheduled region ranges into the page cache on a background thread, so that workers find their data
+ * in memory instead of blocking on the disk.
+ * <p>
+ * Ranges of files that are read mapped are faulted in through short-lived mappings, so the bytes reach the page cache
+ * without being copied anywhere. Other files are read into a scratch buffer instead, since mapping a file on a network
+ * store or in a 32-bit JVM is what their {@link IOMode} avoids.
+ * Workers report each range they start; ranges don't necessarily start in schedule order, so each is tracked on its
+ * own. The prefetcher keeps at most a fixed number of loaded ranges waiting for a worker, skips ranges that a worker
+ * reached first, and stops loading a range as soon as a worker starts on it.
+ */
+final class Prefetcher implements AutoCloseable {
+    private static final int WINDOW_SIZE = 1024 * 1024;
+
+    private final List<RegionFile.Range> schedule;
+    private final FileSource.Factory sources;
+    private final int depth;
+    private final ExtractionStatistics statistics;
+    private final Thread thread;
+    private final boolean[] started;
+    private final boolean[] loaded;
+    private ByteBuffer scratch;
+    private int waiting;
+    private int next;
+    private boolean closed;
+
+    /**
+     * Start the prefetch thread
+     * @param schedule The region ranges in the order they are submitted to the workers. They should all be on stores
+     *                 without a reader limit, since the prefetcher reads alongside the workers.
+     * @param sources Decides whether each file is read mapped
+     * @param depth The number of loaded ranges that may wait for a worker
+     * @param statistics Records the bytes loaded ahead
+     */
+    Prefetcher(List<RegionFile.Range> schedule, FileSource.Factory sources, int depth,
+               ExtractionStatistics statistics) {
+        this.schedule = schedule;
+        this.sources = sources;
+        this.depth = depth;
+        this.statistics = statistics;
+        this.started = new boolean[schedule.size()];
+        this.loaded = new boolean[schedule.size()];
+        this.thread = new Thread(this::run, "HeadExtractor prefetch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Report that a worker started on a range
+     * @param index The index of the range in the schedule
+     */
+    synchronized void started(int index) {
+        if (started[index]) {
+            return;
+        }
+        started[index] = true;
+        if (loaded[index]) {
+            waiting--;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Stop prefetching and wait for the thread to exit
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            int index;
+            synchronized (this) {
+                while (!closed && next < schedule.size() && (started[next] || waiting >= depth)) {
+                    if (started[next]) {
+                        // A worker got there first
+                        next++;
+                        continue;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed || next >= schedule.size()) {
+                    return;
+                }
+                index = next++;
+                loaded[index] = true;
+                waiting++;
+            }
+            load(index);
+        }
+    }
+
+    private void load(int index) {
+        RegionFile.Range range = schedule.get(index);
+        boolean mapped = sources.resolve(range.path()) == IOMode.MAPPED;
+        try (FileChannel channel = FileChannel.open(range.path(), StandardOpenOption.READ)) {
+            long end = Math.min(range.end(), channel.size());
+            long position = range.start();
+            while (position < end && !superseded(index)) {
+                long size = Math.min(WINDOW_SIZE, end - position);
+                if (mapped) {
+                    try (Mapping mapping = Mapping.map(channel, position, size, statistics)) {
+                        mapping.load();
+                    }
+                } else {
+                    readWindow(channel, position, (int) size);
+                }
+                position += size;
+                statistics.bytesPrefetched(size);
+            }
+        } catch (IOException | RuntimeException ignored) {
+            // The worker reports the error when it reads the range
+        }
+    }
+
+    private void readWindow(FileChannel channel, long position, int size) throws IOException {
+        if (scratch == null) {
+            scratch = ByteBuffer.allocateDirect(WINDOW_SIZE);
+        }
+        scratch.clear().limit(size);
+        while (scratch.hasRemaining() && channel.read(scratch, position + scratch.position()) != -1) {
+            // Keep reading until the window is in the page cache or the file ends
+        }
+    }
+
+    private synchronized boolean superseded(int index) {
+        return closed || started[index];
+    }
+}
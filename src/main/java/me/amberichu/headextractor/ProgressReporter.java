@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prints a line of progress at a fixed interval on a background thread while a scan runs.
+ * <p>
+ * Each line reports the read rate over the last interval, which is the rate the read throttle actually let through,
+ * next to the configured limit.
+ */
+final class ProgressReporter implements AutoCloseable {
+    private final ExtractionStatistics statistics;
+    private final long intervalNanos;
+    private final PrintStream out;
+    private final Thread thread;
+    private boolean closed;
+
+    /**
+     * Start the reporting thread
+     * @param statistics The statistics of the running scan
+     * @param intervalSeconds The number of seconds between lines
+     * @param out Where to print the lines
+     */
+    ProgressReporter(ExtractionStatistics statistics, int intervalSeconds, PrintStream out) {
+        this.statistics = statistics;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+        this.out = out;
+        this.thread = new Thread(this::run, "HeadExtractor progress");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop reporting and wait for the thread to exit
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        long lastNanos = System.nanoTime();
+        long lastBytes = statistics.bytesRead();
+        while (true) {
+            synchronized (this) {
+                long deadline = lastNanos + intervalNanos;
+                long remaining;
+                while (!closed && (remaining = deadline - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            long now = System.nanoTime();
+            long bytes = statistics.bytesRead();
+            out.println(statistics.progress((bytes - lastBytes) * 1e9 / (now - lastNanos)));
+            lastNanos = now;
+            lastBytes = bytes;
+        }
+    }
+}
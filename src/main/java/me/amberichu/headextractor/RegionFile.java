@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Layout of Anvil region files: a 4 KiB table of chunk locations followed by the chunks themselves.
+ * <p>
+ * Chunks are read in the order of their sectors rather than their index. Chunks that are physically close are merged
+ * into a single positional read, so each range of a region file is consumed in one forward sweep.
+ */
+final class RegionFile {
+    static final int CHUNKS = 1024;
+    static final int SECTOR_SIZE = 4096;
+    // The location and timestamp tables
+    static final int HEADER_SIZE = 2 * SECTOR_SIZE;
+
+    // Reads are merged up to this size, and across unused gaps up to this size
+    private static final int MAX_READ_SIZE = 1024 * 1024;
+    private static final int MAX_READ_GAP = 8 * SECTOR_SIZE;
+
+    private RegionFile() {
+    }
+
+    /**
+     * A contiguous byte range of a region file, scanned as one task
+     * @param path The region file
+     * @param start The offset of the first chunk sector in the range, inclusive
+     * @param end The offset after which chunks belong to the next range, exclusive
+     * @param size The number of bytes of chunk data in the range, used to schedule the largest work first
+     */
+    record Range(Path path, long start, long end, long size) {
+    }
+
+    /**
+     * The position of a chunk in a region file
+     * @param index The chunk index
+     * @param offset The offset of the first sector of the chunk
+     * @param length The number of bytes in the sectors of the chunk
+     */
+    private record Location(int index, long offset, int length) {
+        long end() {
+            return offset + length;
+        }
+    }
+
+    /**
+     * A single read covering several neighbouring chunks
+     * @param first The index in the sorted locations of the first chunk in the read
+     * @param last The index after the last chunk in the read
+     * @param start The offset of the read
+     * @param length The number of bytes to read
+     */
+    private record Batch(int first, int last, long start, int length) {
+    }
+
+    /**
+     * Receives the chunks of a region file
+     */
+    @FunctionalInterface
+    interface ChunkVisitor {
+        /**
+         * @param index The chunk index
+         * @param chunk The compression type byte followed by the compressed payload, valid until this method returns.
+         *              It may be a slice of a mapping, so it must be copied or fully consumed before returning and no
+         *              reference to it may be kept.
+         * @throws IOException If the chunk can't be processed
+         * @throws CancellationException If the scan is stopping and the rest of the range must not be read
+         */
+        void visit(int index, ByteBuffer chunk) throws IOException;
+    }
+
+    /**
+     * Receives the chunks of a region file that can't be read or processed
+     */
+    @FunctionalInterface
+    interface FailureHandler {
+        /**
+         * @param index The chunk index
+         * @param exception Why the chunk was skipped
+         */
+        void failed(int index, Exception exception);
+    }
+
+    /**
+     * Read every chunk in a range in sector order.
+     * <p>
+     * Every location and length is checked against the file before it is used. A chunk with a bad header, or whose
+     * visitor throws, is reported to the failure handler and the rest of the range is still read. An interruption or a
+     * {@link CancellationException} from the visitor stops the read instead.
+     * <p>
+     * Chunks are handed to the visitor as slices of the source's buffers. With mapped sources those slices point into
+     * a mapping that may be unmapped as soon as the source is closed, and with the opt-in unmapping through the buffer
+     * cleaner a slice touched after that crashes the JVM. Visitors therefore copy or decompress each chunk before
+     * returning.
+     * @param source The region file
+     * @param range The range of the region file to read
+     * @param visitor Receives each chunk that is present
+     * @param failures Receives each chunk that was skipped
+     * @throws IOException If an I/O error occurs
+     * @throws CancellationException If the visitor cancelled the read
+     */
+    static void read(FileSource source, Range range, ChunkVisitor visitor, FailureHandler failures)
+            throws IOException {
+        long fileSize = source.size();
+        List<Location> locations = new ArrayList<>();
+        for (Location location : locations(source.read(0, CHUNKS * 4))) {
+            if (location.offset() < range.start() || location.offset() >= range.end()) {
+                continue;
+            }
+            if (location.offset() < HEADER_SIZE) {
+                failures.failed(location.index(), new IOException("Chunk location overlaps the header"));
+            } else if (location.length() == 0) {
+                failures.failed(location.index(), new IOException("Chunk has no sectors"));
+            } else if (location.offset() + 5 > fileSize) {
+                failures.failed(location.index(), new EOFException("Chunk starts past the end of the file"));
+            } else {
+                locations.add(location);
+            }
+        }
+
+        // Merge the following chunks into each read while they are close enough
+        List<Batch> batches = new ArrayList<>();
+        int first = 0;
+        while (first < locations.size()) {
+            long start = locations.get(first).offset();
+            long end = locations.get(first).end();
+            int last = first + 1;
+            while (last < locations.size()) {
+                Location next = locations.get(last);
+                if (next.offset() - end > MAX_READ_GAP || Math.max(end, next.end()) - start > MAX_READ_SIZE) {
+                    break;
+                }
+                end = Math.max(end, next.end());
+                last++;
+            }
+            batches.add(new Batch(first, last, start, (int) (end - start)));
+            first = last;
+        }
+        for (Batch batch : batches) {
+            source.willRead(batch.start(), batch.length());
+        }
+
+        List<Location> oversized = new ArrayList<>();
+        for (Batch batch : batches) {
+            ByteBuffer buffer = source.read(batch.start(), batch.length());
+            for (int i = batch.first(); i < batch.last(); i++) {
+                Location location = locations.get(i);
+                int position = (int) (location.offset() - batch.start());
+                if (position + 4 > buffer.limit()) {
+                    failures.failed(location.index(), new EOFException("Chunk extends past the end of the file"));
+                    continue;
+                }
+                int length = buffer.getInt(position);
+                if (length < 1 || length > fileSize - location.offset() - 4) {
+                    // A chunk holds at least its compression type, and can't be longer than the rest of the file
+                    failures.failed(location.index(), new IOException("Invalid chunk length " + length));
+                } else if (position + 4 + length <= buffer.limit()) {
+                    visit(location.index(), buffer.slice(position + 4, length), visitor, failures);
+                } else {
+                    // The length doesn't fit the sectors the chunk claims, read it on its own after this batch
+                    oversized.add(new Location(location.index(), location.offset() + 4, length));
+                }
+            }
+        }
+
+        for (Location location : oversized) {
+            ByteBuffer chunk = source.read(location.offset(), location.length());
+            if (chunk.remaining() < location.length()) {
+                failures.failed(location.index(), new EOFException("Chunk extends past the end of the file"));
+                continue;
+            }
+            visit(location.index(), chunk, visitor, failures);
+        }
+    }
+
+    private static void visit(int index, ByteBuffer chunk, ChunkVisitor visitor, FailureHandler failures)
+            throws InterruptedIOException {
+        try {
+            visitor.visit(index, chunk);
+        } catch (InterruptedIOException | CancellationException e) {
+            // The whole scan is stopping, not just this chunk
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            // Malformed chunk data may surface as any runtime exception, none of it affects the other chunks
+            failures.failed(index, e);
+        }
+    }
+
+    /**
+     * Split a region file into ranges of chunks so a single large file can be scanned by several threads
+     * @param sources Opens the region file to read its location table
+     * @param path The region file
+     * @param splitSize Files up to this size are a single range, larger ones are split into ranges of about this
+     *                  many bytes of chunk data. 0 disables splitting.
+     * @return The ranges covering every chunk
+     * @throws IOException If an I/O error occurs while reading the location table
+     */
+    static List<Range> split(FileSource.Factory sources, Path path, long splitSize) throws IOException {
+        long fileSize = Files.size(path);
+        if (splitSize == 0 || fileSize <= splitSize) {
+            return List.of(new Range(path, 0, Long.MAX_VALUE, fileSize));
+        }
+
+        List<Location> locations;
+        try (FileSource source = sources.open(path)) {
+            locations = locations(source.read(0, CHUNKS * 4));
+        }
+
+        List<Range> ranges = new ArrayList<>();
+        long start = 0;
+        long size = 0;
+        for (Location location : locations) {
+            if (size >= splitSize) {
+                ranges.add(new Range(path, start, location.offset(), size));
+                start = location.offset();
+                size = 0;
+            }
+            size += location.length();
+        }
+        ranges.add(new Range(path, start, Long.MAX_VALUE, size));
+        return ranges;
+    }
+
+    /**
+     * Parse the location table
+     * @param table The location table, possibly truncated
+     * @return The locations of the chunks that are present, sorted by offset
+     */
+    private static List<Location> locations(ByteBuffer table) {
+        List<Location> locations = new ArrayList<>();
+        for (int i = 0; i < Math.min(table.remaining() / 4, CHUNKS); i++) {
+            int location = table.getInt(table.position() + 4 * i);
+            if (location == 0) {
+                // Chunk is not present
+                continue;
+            }
+            locations.add(new Location(i, (long) ((location >> 8) & 0xFFFFFF) * SECTOR_SIZE,
+                    (location & 0xFF) * SECTOR_SIZE));
+        }
+        locations.sort(Comparator.comparingLong(Location::offset));
+        return locations;
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Settings for a head extraction. Use {@link #builder()} to create an instance.
+ */
+public final class ScanOptions {
+    private final boolean includeEntities;
+    private final boolean includeRegion;
+    private final boolean includePlayerData;
+    private final boolean includeDataPacks;
+    private final boolean targetedTraversal;
+    private final int inflaterPoolSize;
+    private final long regionSplitSize;
+    private final boolean pipeline;
+    private final int pipelineReaders;
+    private final int pipelineQueueCapacity;
+    private final IOMode ioMode;
+    private final long maxReadRate;
+    private final int prefetchDepth;
+    private final Map<Path, Integer> storeReaders;
+    private final int rotationalStoreReaders;
+    private final ExtractionStatistics statistics;
+
+    private ScanOptions(Builder builder) {
+        this.includeEntities = builder.includeEntities;
+        this.includeRegion = builder.includeRegion;
+        this.includePlayerData = builder.includePlayerData;
+        this.includeDataPacks = builder.includeDataPacks;
+        this.targetedTraversal = builder.targetedTraversal;
+        this.inflaterPoolSize = builder.inflaterPoolSize;
+        this.regionSplitSize = builder.regionSplitSize;
+        this.pipeline = builder.pipeline;
+        this.pipelineReaders = builder.pipelineReaders;
+        this.pipelineQueueCapacity = builder.pipelineQueueCapacity;
+        this.ioMode = builder.ioMode;
+        this.maxReadRate = builder.maxReadRate;
+        this.prefetchDepth = builder.prefetchDepth;
+        this.storeReaders = Map.copyOf(builder.storeReaders);
+        this.rotationalStoreReaders = builder.rotationalStoreReaders;
+        this.statistics = builder.statistics != null ? builder.statistics : new ExtractionStatistics();
+    }
+
+    /**
+     * @return A builder with every source included and default tuning
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return Whether to scan heads carried by non-player entities
+     */
+    public boolean includeEntities() {
+        return includeEntities;
+    }
+
+    /**
+     * @return Whether to scan heads placed in the world or in containers
+     */
+    public boolean includeRegion() {
+        return includeRegion;
+    }
+
+    /**
+     * @return Whether to scan heads carried by players
+     */
+    public boolean includePlayerData() {
+        return includePlayerData;
+    }
+
+    /**
+     * @return Whether to scan .json and .mcfunction files in datapacks
+     */
+    public boolean includeDataPacks() {
+        return includeDataPacks;
+    }
+
+    /**
+     * @return Whether to skip chunk, entity and player data subtrees that can't hold items or profiles
+     */
+    public boolean targetedTraversal() {
+        return targetedTraversal;
+    }
+
+    /**
+     * @return The maximum number of decompression contexts, or 0 to use one per worker thread
+     */
+    public int inflaterPoolSize() {
+        return inflaterPoolSize;
+    }
+
+    /**
+     * @return The size above which a region file is split into chunk ranges scanned in parallel, or 0 to never split
+     */
+    public long regionSplitSize() {
+        return regionSplitSize;
+    }
+
+    /**
+     * @return Whether region files are scanned by a pipeline of read, inflate, scan and validate stages
+     */
+    public boolean pipeline() {
+        return pipeline;
+    }
+
+    /**
+     * @return The number of region files read at once in the pipeline
+     */
+    public int pipelineReaders() {
+        return pipelineReaders;
+    }
+
+    /**
+     * @return The capacity of the queue in front of each pipeline stage
+     */
+    public int pipelineQueueCapacity() {
+        return pipelineQueueCapacity;
+    }
+
+    /**
+     * @return How region and player data files are read
+     */
+    public IOMode ioMode() {
+        return ioMode;
+    }
+
+    /**
+     * @return The maximum number of bytes read per second across all workers, or 0 for no limit
+     */
+    public long maxReadRate() {
+        return maxReadRate;
+    }
+
+    /**
+     * @return The number of region ranges loaded into the page cache ahead of the workers, or 0 to not prefetch
+     */
+    public int prefetchDepth() {
+        return prefetchDepth;
+    }
+
+    /**
+     * @return The reader limits of the file stores holding each path, 0 for no limit
+     */
+    public Map<Path, Integer> storeReaders() {
+        return storeReaders;
+    }
+
+    /**
+     * @return The reader limit of file stores on spinning disks without a limit of their own, or 0 for no limit
+     */
+    public int rotationalStoreReaders() {
+        return rotationalStoreReaders;
+    }
+
+    /**
+     * @return The statistics updated by every extraction using these options
+     */
+    public ExtractionStatistics statistics() {
+        return statistics;
+    }
+
+    public static final class Builder {
+        private boolean includeEntities = true;
+        private boolean includeRegion = true;
+        private boolean includePlayerData = true;
+        private boolean includeDataPacks = true;
+        private boolean targetedTraversal = false;
+        private int inflaterPoolSize = 0;
+        private long regionSplitSize = 16L * 1024 * 1024;
+        private boolean pipeline = false;
+        private int pipelineReaders = 2;
+        private int pipelineQueueCapacity = 256;
+        private IOMode ioMode = IOMode.AUTO;
+        private long maxReadRate = 0;
+        private int prefetchDepth = 2;
+        private final Map<Path, Integer> storeReaders = new LinkedHashMap<>();
+        private int rotationalStoreReaders;
+        private ExtractionStatistics statistics;
+
+        private Builder() {
+        }
+
+        /**
+         * @param includeEntities Whether to scan heads carried by non-player entities
+         * @return This builder
+         */
+        public Builder includeEntities(boolean includeEntities) {
+            this.includeEntities = includeEntities;
+            return this;
+        }
+
+        /**
+         * @param includeRegion Whether to scan heads placed in the world or in containers
+         * @return This builder
+         */
+        public Builder includeRegion(boolean includeRegion) {
+            this.includeRegion = includeRegion;
+            return this;
+        }
+
+        /**
+         * @param includePlayerData Whether to scan heads carried by players
+         * @return This builder
+         */
+        public Builder includePlayerData(boolean includePlayerData) {
+            this.includePlayerData = includePlayerData;
+            return this;
+        }
+
+        /**
+         * @param includeDataPacks Whether to scan .json and .mcfunction files in datapacks
+         * @return This builder
+         */
+        public Builder includeDataPacks(boolean includeDataPacks) {
+            this.includeDataPacks = includeDataPacks;
+            return this;
+        }
+
+        /**
+         * Only scan the subtrees of chunks, entity chunks and player data that can hold items or profiles, such as
+         * block entities, entities and inventories, and skip the rest such as block sections, heightmaps and
+         * structures. Data whose layout isn't recognized is still scanned exhaustively.
+         * @param targetedTraversal Whether to only scan subtrees that can hold items or profiles
+         * @return This builder
+         */
+        public Builder targetedTraversal(boolean targetedTraversal) {
+            this.targetedTraversal = targetedTraversal;
+            return this;
+        }
+
+        /**
+         * Limit the number of live decompression contexts. Each context holds native zlib memory.
+         * @param inflaterPoolSize The maximum number of contexts, or 0 to use one per worker thread
+         * @return This builder
+         */
+        public Builder inflaterPoolSize(int inflaterPoolSize) {
+            if (inflaterPoolSize < 0) {
+                throw new IllegalArgumentException("Inflater pool size must not be negative: " + inflaterPoolSize);
+            }
+            this.inflaterPoolSize = inflaterPoolSize;
+            return this;
+        }
+
+        /**
+         * Split region files larger than the given size into ranges of about that many bytes of chunk data, so that a
+         * single large file can be scanned by several threads
+         * @param regionSplitSize The split size in bytes, or 0 to scan each region file on a single thread
+         * @return This builder
+         */
+        public Builder regionSplitSize(long regionSplitSize) {
+            if (regionSplitSize < 0) {
+                throw new IllegalArgumentException("Region split size must not be negative: " + regionSplitSize);
+            }
+            this.regionSplitSize = regionSplitSize;
+            return this;
+        }
+
+        /**
+         * Scan region files with separate read, inflate, scan and validate stages connected by bounded queues, so that
+         * disk reads overlap with CPU work. The stages run on the extractor's executor. Each stage reports its
+         * throughput and queue depth in the statistics.
+         * @param pipeline Whether to use the staged pipeline
+         * @return This builder
+         */
+        public Builder pipeline(boolean pipeline) {
+            this.pipeline = pipeline;
+            return this;
+        }
+
+        /**
+         * @param pipelineReaders The number of region files read at once in the pipeline
+         * @return This builder
+         */
+        public Builder pipelineReaders(int pipelineReaders) {
+            if (pipelineReaders < 1) {
+                throw new IllegalArgumentException("Pipeline readers must be positive: " + pipelineReaders);
+            }
+            this.pipelineReaders = pipelineReaders;
+            return this;
+        }
+
+        /**
+         * @param pipelineQueueCapacity The capacity of the queue in front of each pipeline stage
+         * @return This builder
+         */
+        public Builder pipelineQueueCapacity(int pipelineQueueCapacity) {
+            if (pipelineQueueCapacity < 1) {
+                throw new IllegalArgumentException("Pipeline queue capacity must be positive: "
+                        + pipelineQueueCapacity);
+            }
+            this.pipelineQueueCapacity = pipelineQueueCapacity;
+            return this;
+        }
+
+        /**
+         * Choose how region and player data files are read. {@link IOMode#AUTO} memory-maps files on local storage
+         * and uses positional reads on network file systems, where mappings fault pages in slowly.
+         * @param ioMode The I/O mode
+         * @return This builder
+         */
+        public Builder ioMode(IOMode ioMode) {
+            if (ioMode == null) {
+                throw new IllegalArgumentException("I/O mode must not be null");
+            }
+            this.ioMode = ioMode;
+            return this;
+        }
+
+        /**
+         * Limit the rate at which region and player data files are read, shared by every worker of an extraction, so
+         * a scan of a live world doesn't starve co-located servers of disk bandwidth
+         * @param maxReadRate The maximum number of bytes read per second, or 0 for no limit
+         * @return This builder
+         */
+        public Builder maxReadRate(long maxReadRate) {
+            if (maxReadRate < 0) {
+                throw new IllegalArgumentException("Maximum read rate must not be negative: " + maxReadRate);
+            }
+            this.maxReadRate = maxReadRate;
+            return this;
+        }
+
+        /**
+         * Load the next scheduled region ranges into the page cache on a background thread while the workers inflate
+         * and parse, so disk latency overlaps with CPU work. Prefetching is skipped with {@link IOMode#DIRECT}, which
+         * bypasses the page cache, with a read rate limit, and with the pipeline, whose read stage already runs ahead.
+         * Files on stores with a reader limit are not prefetched, since their lanes already use every reader.
+         * @param prefetchDepth The number of ranges to load ahead of the workers, or 0 to not prefetch
+         * @return This builder
+         */
+        public Builder prefetchDepth(int prefetchDepth) {
+            if (prefetchDepth < 0) {
+                throw new IllegalArgumentException("Prefetch depth must not be negative: " + prefetchDepth);
+            }
+            this.prefetchDepth = prefetchDepth;
+            return this;
+        }
+
+        /**
+         * Limit how many region and player data files are read at once from the file store holding a path, such as
+         * one for an archive disk and more for an NVMe drive. Without the pipeline, each of those files is also
+         * inflated and scanned by the thread that read it, so a limit of one scans the store on a single thread. With
+         * the pipeline, only reads are limited: the limit is the number of concurrent readers of the store instead of
+         * {@link #pipelineReaders}, and its chunks are scanned by every worker.
+         * @param path Any path on the file store
+         * @param readers The number of files read at once, or 0 for no limit
+         * @return This builder
+         */
+        public Builder storeReaders(Path path, int readers) {
+            if (path == null) {
+                throw new IllegalArgumentException("Path must not be null");
+            }
+            if (readers < 0) {
+                throw new IllegalArgumentException("Store readers must not be negative: " + readers);
+            }
+            this.storeReaders.put(path, readers);
+            return this;
+        }
+
+        /**
+         * Limit how many files are read at once from file stores that Linux reports as spinning disks, unless the
+         * store has a limit of its own, so concurrent readers don't thrash the disk with seeks. Off by default, since
+         * without the pipeline the limit also applies to the CPU work of those files, see {@link #storeReaders}.
+         * @param rotationalStoreReaders The number of files read at once, or 0 for no limit
+         * @return This builder
+         */
+        public Builder rotationalStoreReaders(int rotationalStoreReaders) {
+            if (rotationalStoreReaders < 0) {
+                throw new IllegalArgumentException("Rotational store readers must not be negative: "
+                        + rotationalStoreReaders);
+            }
+            this.rotationalStoreReaders = rotationalStoreReaders;
+            return this;
+        }
+
+        /**
+         * @param statistics The statistics to update during extraction, or null to create a new instance
+         * @return This builder
+         */
+        public Builder statistics(ExtractionStatistics statistics) {
+            this.statistics = statistics;
+            return this;
+        }
+
+        public ScanOptions build() {
+            return new ScanOptions(this);
+        }
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Region scan split into stages connected by bounded queues, so that disk reads and CPU work overlap.
+ * <p>
+ * Readers copy compressed chunks out of region files, inflaters decompress and prefilter them, scanners walk the NBT
+ * for candidates, and validators check the candidates in batches. Each stage drains its queue on the extractor's
+ * executor with a limited number of workers, and reports its throughput and input queue depth to
+ * {@link ExtractionStatistics#stages()}.
+ * <p>
+ * A producer that finds the next queue full processes items of that stage itself while the stage has a free worker,
+ * so producers running on the executor never wait for drains that can't get a thread. If a stage fails with an error
+ * that isn't confined to one item, the queues are dropped and every further queueing or waiting call throws. Readers
+ * stop at their next chunk, so the failure is reported once rather than for every chunk left in the region.
+ */
+final class ScanPipeline {
+    private static final int BATCH_SIZE = 256;
+    private static final long POLL_MILLIS = 50;
+
+    private record CompressedChunk(Path path, int index, byte compressionType, ByteBuffer payload) {
+    }
+
+    private record DecompressedChunk(Path path, int index, byte[] data) {
+    }
+
+    private final FileSource.Factory sources;
+    private final DecompressionContext.Pool decompressionPool;
+    private final ScanOptions options;
+    private final ExtractionStatistics statistics;
+    private final Consumer<String> headConsumer;
+
+    private final Stage<List<String>> validateStage;
+    private final Stage<DecompressedChunk> scanStage;
+    private final Stage<CompressedChunk> inflateStage;
+    private final StoreScheduler stores;
+    private final int capacity;
+    private final CpuBudget budget;
+    private final Map<StoreScheduler.Store, Stage<RegionFile.Range>> readStages = new LinkedHashMap<>();
+    private final Executor executor;
+    private final List<Stage<?>> stages = new CopyOnWriteArrayList<>();
+    private final AtomicReference<IllegalStateException> failure = new AtomicReference<>();
+
+    /**
+     * Create the stages, which start working once items are submitted
+     * @param executor Runs the stage workers
+     * @param threads The number of workers to divide between the CPU-bound stages
+     * @param sources Opens the region files
+     * @param decompressionPool The pool to borrow inflaters from
+     * @param stores Groups the region files by file store, each store gets its own readers
+     * @param budget Paces the stage workers
+     * @param options The scan options
+     * @param headConsumer Receives each candidate, on a validation thread
+     */
+    ScanPipeline(Executor executor, int threads, FileSource.Factory sources,
+                 DecompressionContext.Pool decompressionPool, StoreScheduler stores, CpuBudget budget,
+                 ScanOptions options, Consumer<String> headConsumer) {
+        this.executor = executor;
+        this.sources = sources;
+        this.stores = stores;
+        this.budget = budget;
+        this.decompressionPool = decompressionPool;
+        this.options = options;
+        this.statistics = options.statistics();
+        this.headConsumer = headConsumer;
+
+        for (String stage : new String[]{"read", "inflate", "scan", "validate"}) {
+            // Register the statistics in pipeline order
+            statistics.stage(stage);
+        }
+
+        this.capacity = options.pipelineQueueCapacity();
+        int inflaters = Math.max(1, threads / 2);
+        int scanners = Math.max(1, threads - inflaters);
+        // Later stages start first, so every worker's downstream stage already exists
+        validateStage = new Stage<>("validate", 1, ValidateWorker::new);
+        scanStage = new Stage<>("scan", scanners, ScanWorker::new);
+        inflateStage = new Stage<>("inflate", inflaters, InflateWorker::new);
+    }
+
+    private final class ReadWorker implements Worker<RegionFile.Range> {
+        @Override
+        public void process(RegionFile.Range range) throws IOException {
+            checkRunning();
+            try (FileSource source = sources.open(range.path())) {
+                RegionFile.read(source, range, (index, payload) -> {
+                    // Cancellation is passed through by the region reader and ends this range
+                    checkRunning();
+                    byte compressionType = payload.get();
+                    if (ExternalChunk.isExternal(compressionType)) {
+                        HeadExtractor.checkExternalChunk(statistics, range.path(), index);
+                        return;
+                    }
+                    // Copy the compressed bytes out of the shared read buffer
+                    ByteBuffer copy = ByteBuffer.allocate(payload.remaining()).put(payload).flip();
+                    inflateStage.put(new CompressedChunk(range.path(), index, compressionType, copy));
+                }, (index, e) -> HeadExtractor.reportFailure(statistics, range.path(), index, e));
+            }
+        }
+    }
+
+    private final class InflateWorker implements Worker<CompressedChunk> {
+        @Override
+        public void process(CompressedChunk chunk) throws IOException {
+            byte[] data;
+            // Borrow a context per chunk, player data tasks share the pool and would wait forever on a held context
+            try (DecompressionContext context = decompressionPool.acquire()) {
+                ChunkInput decompressed = context.decompress(chunk.payload(), chunk.compressionType());
+                if (!ChunkPrefilter.mayContainHeads(decompressed.data(), decompressed.length())) {
+                    statistics.chunkSkipped();
+                    return;
+                }
+                data = Arrays.copyOf(decompressed.data(), decompressed.length());
+            }
+            statistics.chunkScanned();
+            scanStage.put(new DecompressedChunk(chunk.path(), chunk.index(), data));
+        }
+    }
+
+    private final class ScanWorker implements Worker<DecompressedChunk> {
+        private final NBTScanner scanner = new NBTScanner(options, this::accept);
+        private final ChunkInput input = new ChunkInput();
+        private List<String> batch = new ArrayList<>(BATCH_SIZE);
+
+        @Override
+        public void process(DecompressedChunk chunk) throws IOException {
+            input.reset(chunk.data(), chunk.data().length);
+            scanner.scan(input);
+        }
+
+        private void accept(String candidate) {
+            batch.add(candidate);
+            if (batch.size() == BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (!batch.isEmpty()) {
+                validateStage.put(batch);
+                batch = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+
+    private final class ValidateWorker implements Worker<List<String>> {
+        @Override
+        public void process(List<String> batch) {
+            batch.forEach(headConsumer);
+        }
+    }
+
+    /**
+     * Queue a range of a region file, blocking while the read queue is full
+     * @param range The chunks to scan
+     */
+    void submit(RegionFile.Range range) {
+        readStages.computeIfAbsent(stores.store(range.path()), store -> {
+            // The first store's readers report as the read stage, further stores get a stage of their own
+            String name = readStages.isEmpty() ? "read" : "read " + store.name();
+            int readers = store.readers() == 0 ? options.pipelineReaders() : store.readers();
+            return new Stage<>(name, readers, ReadWorker::new);
+        }).put(range);
+    }
+
+    /**
+     * Wait for every submitted range to pass through all stages
+     * @throws IllegalStateException If a stage failed
+     */
+    void finish() {
+        readStages.values().forEach(Stage::finish);
+        inflateStage.finish();
+        scanStage.finish();
+        validateStage.finish();
+    }
+
+    /**
+     * Drop all queued work after the scan failed elsewhere. Items being processed are left to finish.
+     */
+    void abort() {
+        fail("pipeline", new CancellationException("The scan was aborted"));
+    }
+
+    private void fail(String stage, Throwable cause) {
+        if (failure.compareAndSet(null, new IllegalStateException("The " + stage + " stage failed", cause))) {
+            stages.forEach(Stage::abort);
+        }
+    }
+
+    /**
+     * @throws CancellationException If a stage failed or the scan was aborted, caused by the failure
+     */
+    private void checkRunning() {
+        IllegalStateException failed = failure.get();
+        if (failed != null) {
+            CancellationException cancelled = new CancellationException(failed.getMessage());
+            cancelled.initCause(failed.getCause());
+            throw cancelled;
+        }
+    }
+
+    private void checkFailure() {
+        IllegalStateException failed = failure.get();
+        if (failed != null) {
+            throw new IllegalStateException(failed.getMessage(), failed.getCause());
+        }
+    }
+
+    private interface Worker<I> {
+        void process(I item) throws IOException;
+
+        default void close() {
+        }
+    }
+
+    private final class Stage<I> {
+        private final String name;
+        private final int workers;
+        private final Supplier<Worker<I>> workerFactory;
+        private final BlockingQueue<I> queue;
+        private final ExtractionStatistics.Stage statistics;
+        private final Queue<Worker<I>> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Stage(String name, int workers, Supplier<Worker<I>> workerFactory) {
+            this.name = name;
+            this.workers = workers;
+            this.workerFactory = workerFactory;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.statistics = ScanPipeline.this.statistics.stage(name);
+            stages.add(this);
+        }
+
+        /**
+         * Queue an item, blocking while the queue is full
+         * @param item The item
+         * @throws CancellationException If a stage failed or the scan was aborted
+         */
+        void put(I item) {
+            checkRunning();
+            statistics.queued(queue.size());
+            try {
+                while (!queue.offer(item)) {
+                    checkRunning();
+                    if (!runOne() && queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while queueing for the " + name + " stage", e);
+            }
+            schedule();
+            checkRunning();
+        }
+
+        /**
+         * Wait for the queue to drain and the workers to stop, then close the workers
+         * @throws IllegalStateException If a stage failed
+         */
+        void finish() {
+            synchronized (this) {
+                while (!queue.isEmpty() || running.get() != 0) {
+                    checkFailure();
+                    schedule();
+                    try {
+                        wait(POLL_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while finishing the " + name + " stage", e);
+                    }
+                }
+            }
+            checkFailure();
+            Worker<I> worker;
+            while ((worker = idle.poll()) != null) {
+                worker.close();
+            }
+            statistics.finished();
+        }
+
+        private void abort() {
+            queue.clear();
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Start a drain on the executor unless one is already waiting to start or every worker is busy
+         */
+        private void schedule() {
+            if (running.get() < workers && scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                    fail(name, e);
+                }
+            }
+        }
+
+        private void drain() {
+            scheduled.set(false);
+            if (!acquire()) {
+                return;
+            }
+            try {
+                // Let another worker join while there is more work
+                if (!queue.isEmpty()) {
+                    schedule();
+                }
+                I item;
+                while (failure.get() == null && (item = queue.poll()) != null) {
+                    process(item);
+                }
+            } catch (Throwable t) {
+                // Anything that escapes the per-item handling would leave the queue without a consumer
+                fail(name, t);
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Process one queued item on the calling thread if the stage has a free worker
+         * @return Whether the stage had a free worker
+         */
+        private boolean runOne() {
+            if (!acquire()) {
+                return false;
+            }
+            try {
+                I item = queue.poll();
+                if (item != null) {
+                    process(item);
+                }
+            } catch (Throwable t) {
+                fail(name, t);
+            } finally {
+                release();
+            }
+            return true;
+        }
+
+        private void process(I item) {
+            Worker<I> worker = idle.poll();
+            if (worker == null) {
+                worker = workerFactory.get();
+            }
+            try {
+                worker.process(item);
+                budget.pace();
+            } catch (IOException | RuntimeException e) {
+                // Only this item is lost, the stage carries on with the next one
+                if (failure.get() == null) {
+                    failed(item, e);
+                }
+            } finally {
+                idle.add(worker);
+            }
+            statistics.itemProcessed();
+        }
+
+        private boolean acquire() {
+            int current;
+            do {
+                current = running.get();
+                if (current >= workers) {
+                    return false;
+                }
+            } while (!running.compareAndSet(current, current + 1));
+            statistics.started();
+            return true;
+        }
+
+        private void release() {
+            if (running.decrementAndGet() == 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+            // An item queued while this worker was stopping would otherwise wait for the next put
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+
+        private void failed(Object item, Exception e) {
+            ExtractionStatistics extractionStatistics = ScanPipeline.this.statistics;
+            if (item instanceof RegionFile.Range range) {
+                HeadExtractor.reportFailure(extractionStatistics, range.path(), -1, e);
+            } else if (item instanceof CompressedChunk chunk) {
+                HeadExtractor.reportFailure(extractionStatistics, chunk.path(), chunk.index(), e);
+            } else if (item instanceof DecompressedChunk chunk) {
+                HeadExtractor.reportFailure(extractionStatistics, chunk.path(), chunk.index(), e);
+            } else {
+                System.err.println("Unable to fully process a batch of candidates due to exception: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Groups files by the {@link FileStore} they live on and limits how many tasks read from each store at once.
+ * <p>
+ * A store's reader count is its best queue depth: one for a spinning disk, where concurrent readers only add seeks,
+ * and unlimited for solid-state and network storage. Tasks of a limited store run in that many lanes, each starting
+ * the next task of the store when its current one ends, so the other workers stay free for the remaining stores. A
+ * lane runs the whole task, inflating and scanning included; {@link ScanPipeline} limits only the reads.
+ */
+final class StoreScheduler {
+    private static final Store UNKNOWN = new Store(null, "unknown", 0);
+
+    /**
+     * A file store and its reader limit
+     * @param fileStore The file store, or null if it couldn't be determined
+     * @param name The name of the file store, such as its device
+     * @param readers The number of tasks that may read from the store at once, or 0 for no limit
+     */
+    record Store(FileStore fileStore, String name, int readers) {
+    }
+
+    private final Map<FileStore, Integer> configuredReaders = new HashMap<>();
+    private final int rotationalReaders;
+    private final Map<Path, Store> directoryStores = new ConcurrentHashMap<>();
+    private final Map<FileStore, Store> stores = new ConcurrentHashMap<>();
+
+    private final List<Object> order = new ArrayList<>();
+    private final Map<Store, Queue<Runnable>> queued = new HashMap<>();
+    private final List<Queue<Runnable>> started = new ArrayList<>();
+
+    /**
+     * @param options The options holding the reader limits
+     * @throws IOException If the file store of a configured path can't be determined
+     */
+    StoreScheduler(ScanOptions options) throws IOException {
+        for (Map.Entry<Path, Integer> entry : options.storeReaders().entrySet()) {
+            configuredReaders.put(Files.getFileStore(entry.getKey()), entry.getValue());
+        }
+        this.rotationalReaders = options.rotationalStoreReaders();
+    }
+
+    /**
+     * @param path A file
+     * @return The store holding the file
+     */
+    Store store(Path path) {
+        // Looking up the file store is slow on some platforms, and every file in a directory shares it
+        Path directory = path.toAbsolutePath().getParent();
+        return directory == null ? lookup(path) : directoryStores.computeIfAbsent(directory, this::lookup);
+    }
+
+    /**
+     * Queue a task that reads the given file. Tasks start in the order they were added when {@link #start} is called.
+     * @param path The file the task reads
+     * @param task The task
+     */
+    void add(Path path, Runnable task) {
+        Store store = store(path);
+        if (store.readers() == 0) {
+            order.add(task);
+            return;
+        }
+        queued.computeIfAbsent(store, key -> {
+            // The lanes of the store start where its first task was added
+            order.add(key);
+            return new ConcurrentLinkedQueue<>();
+        }).add(task);
+    }
+
+    /**
+     * Start every queued task
+     * @param executor Runs the tasks
+     * @return Futures that complete once every task has run
+     */
+    List<CompletableFuture<Void>> start(Executor executor) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (Object entry : order) {
+            if (entry instanceof Runnable task) {
+                futures.add(CompletableFuture.runAsync(task, executor));
+            } else {
+                Store store = (Store) entry;
+                Queue<Runnable> tasks = queued.get(store);
+                started.add(tasks);
+                int lanes = Math.min(store.readers(), tasks.size());
+                for (int i = 0; i < lanes; i++) {
+                    futures.add(lane(tasks, executor));
+                }
+            }
+        }
+        order.clear();
+        queued.clear();
+        return futures;
+    }
+
+    /**
+     * Drop the tasks of limited stores that haven't started yet. Running tasks are left to finish.
+     */
+    void cancel() {
+        started.forEach(Queue::clear);
+    }
+
+    private static CompletableFuture<Void> lane(Queue<Runnable> tasks, Executor executor) {
+        Runnable task = tasks.poll();
+        if (task == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        // Resubmitting rather than looping puts the next task behind the work of the other stores
+        return CompletableFuture.runAsync(task, executor).thenCompose(ignored -> lane(tasks, executor));
+    }
+
+    private Store lookup(Path path) {
+        try {
+            FileStore fileStore = Files.getFileStore(path);
+            return stores.computeIfAbsent(fileStore, key -> {
+                Integer readers = configuredReaders.get(key);
+                if (readers == null) {
+                    readers = isRotational(key) ? rotationalReaders : 0;
+                }
+                return new Store(key, key.name(), readers);
+            });
+        } catch (IOException e) {
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * @return Whether the store is on a spinning disk, as reported by Linux. False if it can't be determined.
+     */
+    private static boolean isRotational(FileStore fileStore) {
+        String name = fileStore.name();
+        if (!name.startsWith("/dev/")) {
+            return false;
+        }
+        try {
+            // Resolve links such as /dev/mapper/root to the kernel's device name
+            String device = Path.of(name).toRealPath().getFileName().toString();
+            Path block = Path.of("/sys/class/block", device).toRealPath();
+            Path rotational = block.resolve("queue/rotational");
+            if (!Files.exists(rotational)) {
+                // Partitions share the queue of their disk
+                rotational = block.getParent().resolve("queue/rotational");
+            }
+            return Files.readString(rotational).trim().equals("1");
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+
+/**
+ * Token bucket limiting the rate at which the workers of an extraction consume a shared budget, such as bytes read or
+ * CPU time.
+ * <p>
+ * A worker takes its amount from the bucket up front, which may leave the bucket in debt. The worker then sleeps until
+ * the debt would have been refilled, outside the lock so other workers can queue behind it in order.
+ */
+final class Throttle {
+    private final double unitsPerNano;
+    private final double burst;
+    private final LongConsumer waited;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param unitsPerSecond The sustained rate, must be positive
+     * @param burst The largest amount that can be taken at once without waiting
+     * @param waited Receives the number of nanoseconds each wait lasts
+     */
+    Throttle(double unitsPerSecond, double burst, LongConsumer waited) {
+        this.unitsPerNano = unitsPerSecond / 1e9;
+        this.burst = burst;
+        this.waited = waited;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Take an amount from the bucket, waiting while it is in debt
+     * @param amount The amount about to be used
+     * @throws InterruptedIOException If the thread is interrupted while waiting
+     */
+    void acquire(long amount) throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefill) * unitsPerNano);
+            lastRefill = now;
+            tokens -= amount;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens / unitsPerNano);
+        }
+        if (waitNanos <= 0) {
+            return;
+        }
+
+        waited.accept(waitNanos);
+        long deadline = System.nanoTime() + waitNanos;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, Math.min(remaining, TimeUnit.SECONDS.toNanos(1)));
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+}
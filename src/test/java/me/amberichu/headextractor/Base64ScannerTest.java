@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that {@link Base64Scanner} finds exactly the candidates the pattern it replaced found.
+ */
+class Base64ScannerTest {
+    private static final Pattern BASE64_PATTERN = Pattern.compile("\\\\?[\"']((?:[A-Za-z0-9+/]{4})*(?:[A-Za-z0-9+/]{2}==|[A-Za-z0-9+/]{3}=))\\\\?[\"']");
+
+    private static final String TEXTURES = "eyJ0ZXh0dXJlcyI6eyJTS0lOIjp7InVybCI6Imh0dHA6Ly90ZXh0dXJlcy5taW5lY3JhZnQubmV0L3RleHR1cmUv"
+            + "YTkwNzkwYzU3ZTE4MWVkMTNhZGVkMTRjNDdlZTJmN2M4ZGUzNTMzZTAxN2JhOTU3YWY3YmRmOWRmMWJkZTk0ZiJ9fX0=";
+
+    @Test
+    void realInputs() {
+        check("{SkullOwner:{Id:[I;1,2,3,4],Properties:{textures:[{Value:\"" + TEXTURES + "\"}]}}}");
+        check("{\"text\":\"\",\"extra\":[{\"text\":\"" + TEXTURES + "\"}]}");
+        check("{\\\"Value\\\":\\\"" + TEXTURES + "\\\"}");
+        check("{display:{Name:'{\"text\":\"Head\"}'},SkullOwner:'" + TEXTURES + "'}");
+        check("/give @p player_head{SkullOwner:{Properties:{textures:[{Value:\"" + TEXTURES + "\"}]}}} 1");
+        check("minecraft:stone");
+        check("");
+    }
+
+    @Test
+    void quotes() {
+        check("\"YWJj=\"");
+        check("'YWJj='");
+        check("\"YWJj='");
+        check("\\\"YWJj=\\\"");
+        check("\\'YWJj=\"");
+        check("\"YWJj=\\'");
+        check("\\\\\"YWJj=\\\\\"");
+        check("\\YWJj=\\\"");
+        check("\"YWJj=\\");
+        check("\"\"YWJj=\"\"");
+    }
+
+    @Test
+    void padding() {
+        check("\"YQ==\"");
+        check("\"YWI=\"");
+        check("\"YWJj\"");
+        check("\"YQ=\"");
+        check("\"YWI==\"");
+        check("\"YQ===\"");
+        check("\"YWJjZA==\"");
+        check("\"YWJjZGU=\"");
+        check("\"==\"");
+        check("\"=\"");
+    }
+
+    @Test
+    void runLengths() {
+        for (int length = 0; length <= 13; length++) {
+            String run = "ABCDEFGHIJKLM".substring(0, length);
+            check("\"" + run + "=\"");
+            check("\"" + run + "==\"");
+            check("\"" + run + "\"");
+        }
+    }
+
+    @Test
+    void adjacentCandidates() {
+        check("\"YQ==\"\"YWI=\"");
+        check("\"YQ==\"YWI=\"");
+        check("'YQ=='YWI='");
+        check("\"YQ==\\\"YWI=\\\"");
+        check("\"YQ==\",\"YWI=\",\"YWJjZA==\"");
+        check("\"YQ===\"YWI=\"");
+    }
+
+    @Test
+    void endOfBuffer() {
+        check("\"");
+        check("\\");
+        check("\"YWI=");
+        check("\"YWI=\"");
+        check("\"YWI=\\");
+        check("\"YWI=\\\"");
+        check("\"YQ=");
+        check("\"YQ==");
+        check("x\"YQ==\"");
+    }
+
+    @Test
+    void nonAscii() {
+        check("\u00e9\"YQ==\"\u00fc'YWI='");
+        check("\"YQ\u00e9==\"");
+        check("\u4e2d\"YWJjZA==\"\u4e2d");
+    }
+
+    @Test
+    void byteRanges() {
+        byte[] bytes = "xx\"YQ==\"xx\"YWI=\"xx".getBytes(StandardCharsets.UTF_8);
+        // The range ends inside the second candidate, so only the first is found
+        List<String> candidates = new ArrayList<>();
+        Base64Scanner scanner = new Base64Scanner().reset(bytes, 2, 12);
+        while (scanner.find()) {
+            candidates.add(scanner.start() + ":" + scanner.end() + ":" + scanner.candidate());
+        }
+        assertEquals(List.of("3:7:YQ=="), candidates);
+    }
+
+    @Test
+    void randomInputs() {
+        char[] alphabet = {'A', 'z', '0', '+', '/', '=', '=', '"', '\'', '\\', ' '};
+        Random random = new Random(0);
+        for (int i = 0; i < 100_000; i++) {
+            char[] input = new char[random.nextInt(24)];
+            for (int j = 0; j < input.length; j++) {
+                input[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            check(new String(input));
+        }
+    }
+
+    private static void check(String input) {
+        List<String> expected = new ArrayList<>();
+        Matcher matcher = BASE64_PATTERN.matcher(input);
+        while (matcher.find()) {
+            expected.add(matcher.start(1) + ":" + matcher.end(1) + ":" + matcher.group(1));
+        }
+
+        List<String> chars = new ArrayList<>();
+        Base64Scanner scanner = new Base64Scanner().reset(input);
+        while (scanner.find()) {
+            chars.add(scanner.start() + ":" + scanner.end() + ":" + scanner.candidate());
+        }
+        assertEquals(expected, chars, () -> "CharSequence scan of " + input);
+
+        // Byte offsets only match char offsets for ASCII input, so map them back before comparing
+        byte[] encoded = input.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[encoded.length + 4];
+        System.arraycopy(encoded, 0, bytes, 2, encoded.length);
+        List<String> raw = new ArrayList<>();
+        scanner.reset(bytes, 2, encoded.length);
+        while (scanner.find()) {
+            int start = new String(bytes, 2, scanner.start() - 2, StandardCharsets.UTF_8).length();
+            raw.add(start + ":" + (start + scanner.end() - scanner.start()) + ":" + scanner.candidate());
+        }
+        assertEquals(expected, raw, () -> "Byte scan of " + input);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that {@link ChunkInput} reads the same values as a {@link DataInputStream} over the same bytes.
+ */
+class ChunkInputTest {
+    @Test
+    @SuppressWarnings("deprecation")
+    void lines() throws IOException {
+        String[] inputs = {"", "a", "a\n", "a\r", "a\r\n", "a\n\r", "\n\n", "\r\r\n", "a\nb\rc\r\nd", "\u00e9\u00ff\n",
+                "line\r"};
+        for (String input : inputs) {
+            byte[] bytes = input.getBytes(StandardCharsets.ISO_8859_1);
+            DataInputStream expected = new DataInputStream(new ByteArrayInputStream(bytes));
+            ChunkInput actual = input(bytes);
+            String line;
+            do {
+                line = expected.readLine();
+                assertEquals(line, actual.readLine(), () -> "Line of " + input);
+            } while (line != null);
+        }
+    }
+
+    @Test
+    void randomReads() throws IOException {
+        Random random = new Random(0);
+        for (int i = 0; i < 10_000; i++) {
+            byte[] bytes = new byte[random.nextInt(64)];
+            random.nextBytes(bytes);
+            // Make line breaks and short modified UTF-8 strings likely
+            for (int j = 0; j < bytes.length; j++) {
+                switch (random.nextInt(8)) {
+                    case 0 -> bytes[j] = '\n';
+                    case 1 -> bytes[j] = '\r';
+                    case 2 -> bytes[j] = 0;
+                    default -> {
+                    }
+                }
+            }
+            DataInputStream expected = new DataInputStream(new ByteArrayInputStream(bytes));
+            ChunkInput actual = input(bytes);
+            while (true) {
+                int operation = random.nextInt(12);
+                Object expectedValue;
+                try {
+                    expectedValue = read(expected, operation);
+                } catch (EOFException | UTFDataFormatException e) {
+                    assertThrows(e.getClass(), () -> read(actual, operation));
+                    break;
+                }
+                assertEquals(expectedValue, read(actual, operation), () -> "Operation " + operation);
+                if (expectedValue == null) {
+                    break;
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Object read(DataInput in, int operation) throws IOException {
+        return switch (operation) {
+            case 0 -> in.readBoolean();
+            case 1 -> in.readByte();
+            case 2 -> in.readUnsignedByte();
+            case 3 -> in.readShort();
+            case 4 -> in.readUnsignedShort();
+            case 5 -> in.readChar();
+            case 6 -> in.readInt();
+            case 7 -> in.readLong();
+            case 8 -> in.readDouble();
+            case 9 -> in.readUTF();
+            case 10 -> in.skipBytes(3);
+            default -> in.readLine();
+        };
+    }
+
+    private static ChunkInput input(byte[] bytes) {
+        ChunkInput input = new ChunkInput();
+        // Trailing bytes past the length must never be read
+        byte[] padded = new byte[bytes.length + 8];
+        System.arraycopy(bytes, 0, padded, 0, bytes.length);
+        padded[bytes.length] = '\n';
+        input.reset(padded, bytes.length);
+        return input;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the LZ4 decoder of {@link DecompressionContext} against fixed payloads, and {@link DecompressionContext.Pool}
+ * lending and closing.
+ * <p>
+ * The payloads follow the block stream format of lz4-java's {@code LZ4BlockOutputStream} and the LZ4 frame format
+ * byte for byte, including the checksums those writers store, and don't depend on the compressor in
+ * {@link CodecBenchmark}.
+ */
+class DecompressionContextTest {
+    // lz4-java LZ4BlockOutputStream with the default 64 KiB blocks, as Minecraft writes it: a compressed block holding
+    // "abc" and an overlapping match of 24 bytes at offset 3, then "tail!", followed by the empty end block
+    private static final byte[] BLOCK_STREAM = hex(
+            "4C 5A 34 42 6C 6F 63 6B 26 0D 00 00 00 20 00 00 00 7A F0 D4 07 3F 61 62 63 03 00 05 50 74 61 69 "
+            + "6C 21 4C 5A 34 42 6C 6F 63 6B 16 00 00 00 00 00 00 00 00 00 00 00 00");
+
+    // LZ4BlockOutputStream with 64 byte blocks: the digits repeated to 64 bytes, 64 incompressible bytes (73i + 11)
+    // stored raw, and 27 bytes of "xy" repeated. Every block is compressed on its own.
+    private static final byte[] BLOCK_STREAM_SMALL_BLOCKS = hex(
+            "4C 5A 34 42 6C 6F 63 6B 20 14 00 00 00 40 00 00 00 9C 4A AE 0F AF 30 31 32 33 34 35 36 37 38 39 "
+            + "0A 00 1E 50 39 30 31 32 33 4C 5A 34 42 6C 6F 63 6B 10 40 00 00 00 40 00 00 00 22 FC 05 00 0B 54 "
+            + "9D E6 2F 78 C1 0A 53 9C E5 2E 77 C0 09 52 9B E4 2D 76 BF 08 51 9A E3 2C 75 BE 07 50 99 E2 2B 74 "
+            + "BD 06 4F 98 E1 2A 73 BC 05 4E 97 E0 29 72 BB 04 4D 96 DF 28 71 BA 03 4C 95 DE 27 70 B9 02 4C 5A "
+            + "34 42 6C 6F 63 6B 20 0C 00 00 00 1B 00 00 00 32 C3 07 00 2F 78 79 02 00 01 50 78 79 78 79 78 4C "
+            + "5A 34 42 6C 6F 63 6B 10 00 00 00 00 00 00 00 00 00 00 00 00");
+
+    // 270 literals (7i + 3) and a 300 byte match at offset 1, both lengths continued over several bytes, then "zzzzz"
+    private static final byte[] LONG_LENGTHS = hex(
+            "4C 5A 34 42 6C 6F 63 6B 26 1B 01 00 00 3F 02 00 00 E5 4F 43 0B FF FF 00 03 0A 11 18 1F 26 2D 34 "
+            + "3B 42 49 50 57 5E 65 6C 73 7A 81 88 8F 96 9D A4 AB B2 B9 C0 C7 CE D5 DC E3 EA F1 F8 FF 06 0D 14 "
+            + "1B 22 29 30 37 3E 45 4C 53 5A 61 68 6F 76 7D 84 8B 92 99 A0 A7 AE B5 BC C3 CA D1 D8 DF E6 ED F4 "
+            + "FB 02 09 10 17 1E 25 2C 33 3A 41 48 4F 56 5D 64 6B 72 79 80 87 8E 95 9C A3 AA B1 B8 BF C6 CD D4 "
+            + "DB E2 E9 F0 F7 FE 05 0C 13 1A 21 28 2F 36 3D 44 4B 52 59 60 67 6E 75 7C 83 8A 91 98 9F A6 AD B4 "
+            + "BB C2 C9 D0 D7 DE E5 EC F3 FA 01 08 0F 16 1D 24 2B 32 39 40 47 4E 55 5C 63 6A 71 78 7F 86 8D 94 "
+            + "9B A2 A9 B0 B7 BE C5 CC D3 DA E1 E8 EF F6 FD 04 0B 12 19 20 27 2E 35 3C 43 4A 51 58 5F 66 6D 74 "
+            + "7B 82 89 90 97 9E A5 AC B3 BA C1 C8 CF D6 DD E4 EB F2 F9 00 07 0E 15 1C 23 2A 31 38 3F 46 4D 54 "
+            + "5B 62 69 70 77 7E 85 8C 93 9A A1 A8 AF B6 BD C4 CB D2 D9 E0 E7 EE F5 FC 03 0A 11 18 1F 26 2D 34 "
+            + "3B 42 49 50 57 5E 01 00 FF 1A 50 7A 7A 7A 7A 7A 4C 5A 34 42 6C 6F 63 6B 16 00 00 00 00 00 00 00 "
+            + "00 00 00 00 00");
+
+    // "a" with a 19 byte match at offset 1, "bc" with a 14 byte match at offset 2, then "12345"
+    private static final byte[] OVERLAPPING = hex(
+            "4C 5A 34 42 6C 6F 63 6B 26 10 00 00 00 29 00 00 00 87 29 50 03 1F 61 01 00 00 2A 62 63 02 00 50 "
+            + "31 32 33 34 35 4C 5A 34 42 6C 6F 63 6B 16 00 00 00 00 00 00 00 00 00 00 00 00");
+
+    // The frame the lz4 tool writes for empty input: independent blocks, a content checksum and no blocks
+    private static final byte[] EMPTY_FRAME = hex("04 22 4D 18 64 40 A7 00 00 00 00 05 5D CC 02");
+
+    // Frame with independent blocks and a content checksum: "hello hello hello world", then "121212121212" + "34567"
+    private static final byte[] INDEPENDENT_FRAME = hex(
+            "04 22 4D 18 64 40 A7 0F 00 00 00 68 68 65 6C 6C 6F 20 06 00 50 77 6F 72 6C 64 0B 00 00 00 26 31 "
+            + "32 02 00 50 33 34 35 36 37 00 00 00 00 29 B1 E0 4F");
+
+    // Frame with linked blocks and a content checksum: "linked blocks linked blocks share", then a second block that
+    // starts with a 14 byte match at offset 33, reaching back into the first block, and ends with "!done"
+    private static final byte[] LINKED_FRAME = hex(
+            "04 22 4D 18 44 40 5E 17 00 00 00 EA 6C 69 6E 6B 65 64 20 62 6C 6F 63 6B 73 20 0E 00 50 73 68 61 "
+            + "72 65 09 00 00 00 0A 21 00 50 21 64 6F 6E 65 00 00 00 00 70 4D 5D 04");
+
+    // The blocks of LINKED_FRAME in a frame that declares its blocks independent
+    private static final byte[] LINKED_AS_INDEPENDENT = hex(
+            "04 22 4D 18 60 40 82 17 00 00 00 EA 6C 69 6E 6B 65 64 20 62 6C 6F 63 6B 73 20 0E 00 50 73 68 61 "
+            + "72 65 09 00 00 00 0A 21 00 50 21 64 6F 6E 65 00 00 00 00");
+
+    // Frame with block checksums, the content size and a content checksum: "hello hello hello world" compressed, then
+    // "stored" in an uncompressed block
+    private static final byte[] CHECKSUM_FRAME = hex(
+            "04 22 4D 18 7C 40 1D 00 00 00 00 00 00 00 8E 0F 00 00 00 68 68 65 6C 6C 6F 20 06 00 50 77 6F 72 "
+            + "6C 64 EE 2D 48 7E 06 00 00 80 73 74 6F 72 65 64 77 FD 42 E5 00 00 00 00 24 72 DD 10");
+
+    // A skippable frame, a frame with "hello hello hello world", an empty skippable frame, a frame with "stored" in an
+    // uncompressed block and a final skippable frame
+    private static final byte[] SKIPPABLE_FRAMES = hex(
+            "50 2A 4D 18 04 00 00 00 6D 65 74 61 04 22 4D 18 60 40 82 0F 00 00 00 68 68 65 6C 6C 6F 20 06 00 "
+            + "50 77 6F 72 6C 64 00 00 00 00 5F 2A 4D 18 00 00 00 00 04 22 4D 18 60 40 82 06 00 00 80 73 74 6F "
+            + "72 65 64 00 00 00 00 5A 2A 4D 18 03 00 00 00 01 02 03");
+
+    // A block stream whose only match has offset 0
+    private static final byte[] ZERO_OFFSET = hex(
+            "4C 5A 34 42 6C 6F 63 6B 26 0C 00 00 00 10 00 00 00 56 32 64 07 34 61 62 63 00 00 50 74 61 69 6C "
+            + "21");
+
+    // A block stream whose only match has offset 4 after 3 literals
+    private static final byte[] OFFSET_BEFORE_START = hex(
+            "4C 5A 34 42 6C 6F 63 6B 26 0C 00 00 00 10 00 00 00 56 32 64 07 34 61 62 63 04 00 50 74 61 69 6C "
+            + "21");
+
+    // BLOCK_STREAM with a block header declaring 20 decompressed bytes instead of 32
+    private static final byte[] BLOCK_OVERRUN = hex(
+            "4C 5A 34 42 6C 6F 63 6B 26 0D 00 00 00 14 00 00 00 EB C9 48 04 3F 61 62 63 03 00 05 50 74 61 69 "
+            + "6C 21 4C 5A 34 42 6C 6F 63 6B 16 00 00 00 00 00 00 00 00 00 00 00 00");
+
+    // BLOCK_STREAM with a block header declaring 40 decompressed bytes instead of 32
+    private static final byte[] BLOCK_UNDERRUN = hex(
+            "4C 5A 34 42 6C 6F 63 6B 26 0D 00 00 00 28 00 00 00 7A F0 D4 07 3F 61 62 63 03 00 05 50 74 61 69 "
+            + "6C 21 4C 5A 34 42 6C 6F 63 6B 16 00 00 00 00 00 00 00 00 00 00 00 00");
+
+    // BLOCK_STREAM without its end block
+    private static final byte[] MISSING_END_BLOCK = hex(
+            "4C 5A 34 42 6C 6F 63 6B 26 0D 00 00 00 20 00 00 00 7A F0 D4 07 3F 61 62 63 03 00 05 50 74 61 69 "
+            + "6C 21");
+
+    // A frame holding "hello hello hello world" that declares a content size of 22 bytes instead of 23
+    private static final byte[] CONTENT_SIZE_MISMATCH = hex(
+            "04 22 4D 18 68 40 16 00 00 00 00 00 00 00 E8 0F 00 00 00 68 68 65 6C 6C 6F 20 06 00 50 77 6F 72 "
+            + "6C 64 00 00 00 00");
+
+    // A frame with 64 KiB blocks whose only block decodes to "a" and a 70000 byte match at offset 1, then "bcdef"
+    private static final byte[] FRAME_BLOCK_OVERRUN = hex(
+            "04 22 4D 18 60 40 82 1D 01 00 00 1F 61 01 00 FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF "
+            + "FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF "
+            + "FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF "
+            + "FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF "
+            + "FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF "
+            + "FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF "
+            + "FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF "
+            + "FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF "
+            + "FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF FF "
+            + "FF 6F 50 62 63 64 65 66 00 00 00 00");
+
+    private static final DecompressionContext.Pool POOL = new DecompressionContext.Pool(1);
+
+    @Test
+    void blockStream() throws IOException {
+        assertArrayEquals(ascii("abc".repeat(9) + "tail!"), decode(BLOCK_STREAM));
+    }
+
+    @Test
+    void independentBlocks() throws IOException {
+        byte[] stored = new byte[64];
+        for (int i = 0; i < stored.length; i++) {
+            stored[i] = (byte) (73 * i + 11);
+        }
+        byte[] expected = concat(ascii("0123456789".repeat(7).substring(0, 64)), stored,
+                ascii("xy".repeat(13) + "x"));
+        assertArrayEquals(expected, decode(BLOCK_STREAM_SMALL_BLOCKS));
+        assertArrayEquals(ascii("hello hello hello world" + "12".repeat(6) + "34567"), decode(INDEPENDENT_FRAME));
+    }
+
+    @Test
+    void linkedBlocks() throws IOException {
+        assertArrayEquals(ascii("linked blocks linked blocks share" + "linked blocks !done"), decode(LINKED_FRAME));
+        // Without the link the match reaches before the start of its block
+        assertThrows(IOException.class, () -> decode(LINKED_AS_INDEPENDENT));
+    }
+
+    @Test
+    void checksums() throws IOException {
+        assertArrayEquals(new byte[0], decode(EMPTY_FRAME));
+        assertArrayEquals(ascii("hello hello hello worldstored"), decode(CHECKSUM_FRAME));
+    }
+
+    @Test
+    void skippableFrames() throws IOException {
+        assertArrayEquals(ascii("hello hello hello worldstored"), decode(SKIPPABLE_FRAMES));
+    }
+
+    @Test
+    void overlappingMatches() throws IOException {
+        assertArrayEquals(ascii("a".repeat(20) + "bc".repeat(8) + "12345"), decode(OVERLAPPING));
+
+        byte[] literals = new byte[270];
+        for (int i = 0; i < literals.length; i++) {
+            literals[i] = (byte) (7 * i + 3);
+        }
+        byte[] run = new byte[300];
+        Arrays.fill(run, literals[literals.length - 1]);
+        assertArrayEquals(concat(literals, run, ascii("zzzzz")), decode(LONG_LENGTHS));
+    }
+
+    @Test
+    void truncated() {
+        for (byte[] payload : new byte[][] {BLOCK_STREAM, BLOCK_STREAM_SMALL_BLOCKS, LONG_LENGTHS, OVERLAPPING,
+                EMPTY_FRAME, INDEPENDENT_FRAME, LINKED_FRAME, CHECKSUM_FRAME}) {
+            for (int length = 0; length < payload.length; length++) {
+                byte[] prefix = Arrays.copyOf(payload, length);
+                assertThrows(IOException.class, () -> decode(prefix), "Prefix of " + length + " bytes");
+            }
+        }
+        assertThrows(IOException.class, () -> decode(MISSING_END_BLOCK));
+    }
+
+    @Test
+    void invalidOffsets() {
+        assertThrows(IOException.class, () -> decode(ZERO_OFFSET));
+        assertThrows(IOException.class, () -> decode(OFFSET_BEFORE_START));
+    }
+
+    @Test
+    void overruns() {
+        assertThrows(IOException.class, () -> decode(BLOCK_OVERRUN));
+        assertThrows(IOException.class, () -> decode(BLOCK_UNDERRUN));
+        assertThrows(IOException.class, () -> decode(CONTENT_SIZE_MISMATCH));
+        assertThrows(IOException.class, () -> decode(FRAME_BLOCK_OVERRUN));
+    }
+
+    @Test
+    void directBuffers() throws IOException {
+        // Mapped payloads are direct slices that don't start at the beginning of their buffer
+        for (byte[] payload : new byte[][] {LONG_LENGTHS, BLOCK_STREAM, SKIPPABLE_FRAMES}) {
+            ByteBuffer direct = ByteBuffer.allocateDirect(payload.length + 3);
+            direct.position(3);
+            direct.put(payload);
+            direct.position(3);
+            assertArrayEquals(decode(payload), decode(direct));
+            assertEquals(3, direct.position());
+        }
+    }
+
+    @Test
+    void closeWakesWaiters() throws Exception {
+        DecompressionContext.Pool pool = new DecompressionContext.Pool(1);
+        DecompressionContext borrowed = pool.acquire();
+        CompletableFuture<DecompressionContext> waiter = CompletableFuture.supplyAsync(pool::acquire);
+        // Give the waiter time to block on the empty pool
+        Thread.sleep(200);
+        pool.close();
+        ExecutionException exception = assertThrows(ExecutionException.class,
+                () -> waiter.get(5, TimeUnit.SECONDS));
+        assertTrue(exception.getCause() instanceof IllegalStateException);
+        borrowed.close();
+        assertThrows(IllegalStateException.class, pool::acquire);
+    }
+
+    private static byte[] decode(byte[] payload) throws IOException {
+        return decode(ByteBuffer.wrap(payload));
+    }
+
+    private static byte[] decode(ByteBuffer payload) throws IOException {
+        try (DecompressionContext context = POOL.acquire()) {
+            ChunkInput chunk = context.decompress(payload, 4);
+            return Arrays.copyOf(chunk.data(), chunk.length());
+        }
+    }
+
+    private static byte[] ascii(String string) {
+        return string.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        byte[] result = new byte[0];
+        for (byte[] array : arrays) {
+            int offset = result.length;
+            result = Arrays.copyOf(result, offset + array.length);
+            System.arraycopy(array, 0, result, offset, array.length);
+        }
+        return result;
+    }
+
+    /**
+     * @param hex Bytes in hexadecimal, separated by spaces
+     */
+    private static byte[] hex(String hex) {
+        String[] bytes = hex.split(" ");
+        byte[] result = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            result[i] = (byte) Integer.parseInt(bytes[i], 16);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that {@link HeadValidator} accepts exactly the profiles the tree-based validation it replaced accepted.
+ */
+class HeadValidatorTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String PROFILE = "{\"textures\":{\"SKIN\":{\"url\":\"http://textures.minecraft.net/texture/"
+            + "a90790c57e181ed13aded14c47ee2f7c8de3533e017ba957af7bdf9df1bde94f\"}}}";
+
+    @Test
+    void profiles() {
+        assertTrue(HeadValidator.validate(encode(PROFILE)));
+        check("{\"timestamp\":1600000000000,\"profileId\":\"0123456789abcdef0123456789abcdef\",\"profileName\":\"Name\","
+                + "\"signatureRequired\":true,\"textures\":{\"SKIN\":{\"url\":\"http://example.com/a\","
+                + "\"metadata\":{\"model\":\"slim\"}},\"CAPE\":{\"url\":\"http://example.com/b\"}}}");
+        check(" \r\n\t{ \"textures\" : { \"SKIN\" : { \"url\" : \"\" } } } ");
+        check("\uFEFF" + PROFILE);
+        check("{}");
+        check("");
+        check("   ");
+    }
+
+    @Test
+    void escapes() {
+        check("{\"textures\":{\"SKIN\":{\"url\":\"http:\\/\\/a\\\\b\\\"c\\n\\u00e9\"}}}");
+        check("{\"\\u0074extures\":{\"SKIN\":{\"ur\\u006C\":\"a\"}}}");
+        check("{\"textures\":{\"\\u0053\\u004B\\u0049\\u004E\":{\"url\":\"a\"}}}");
+        check("{\"textures\":{\"SKIN\":{\"url\\u0000\":\"a\"}}}");
+        check("{\"textures\":{\"SKIN\":{\"url\":\"\\x\"}}}");
+        check("{\"textures\":{\"SKIN\":{\"url\":\"\\u00g0\"}}}");
+        check("{\"textures\":{\"SKIN\":{\"url\":\"a\tb\"}}}");
+        check("{\"textures\":{\"SKIN\":{\"url\":\"a\"}},\"other\":\"\\q\"}");
+        check("{\"textur\u00e9s\":{\"SKIN\":{\"url\":\"a\"}}}");
+        check("{\"textures\":{\"SKIN\":{\"url\":\"\u4e2d\"}}}");
+    }
+
+    @Test
+    void duplicateKeys() {
+        check("{\"textures\":{\"SKIN\":{\"url\":\"a\"}},\"textures\":{}}");
+        check("{\"textures\":{},\"textures\":{\"SKIN\":{\"url\":\"a\"}}}");
+        check("{\"textures\":{\"SKIN\":{\"url\":\"a\",\"url\":1}}}");
+        check("{\"textures\":{\"SKIN\":{\"url\":1,\"url\":\"a\"}}}");
+        check("{\"textures\":{\"SKIN\":{\"url\":\"a\"},\"SKIN\":null}}");
+        check("{\"textures\":{\"SKIN\":[],\"SKIN\":{\"url\":\"a\"}}}");
+    }
+
+    @Test
+    void nesting() {
+        check("{\"textures\":{\"SKIN\":{\"url\":\"a\"}},\"a\":[[{\"b\":[{}]}],{\"textures\":1}]}");
+        check("{\"other\":{\"textures\":{\"SKIN\":{\"url\":\"a\"}}}}");
+        check("{\"textures\":{\"other\":{\"SKIN\":{\"url\":\"a\"}}}}");
+        check("{\"textures\":{\"SKIN\":{\"other\":{\"url\":\"a\"}}}}");
+        check("{\"textures\":{\"SKIN\":{\"url\":\"a\",\"metadata\":{\"url\":1}}}}");
+        check("[" + PROFILE + "]");
+        check("{\"textures\":{\"SKIN\":{\"url\":\"a\"}},\"a\":" + "[".repeat(200) + "]".repeat(200) + "}");
+        check("{\"textures\":{\"SKIN\":{\"url\":\"a\"}},\"a\":" + "[".repeat(200) + "]".repeat(199) + "}");
+    }
+
+    @Test
+    void trailingContent() {
+        check(PROFILE + "garbage");
+        check(PROFILE + "}");
+        check(PROFILE + PROFILE);
+        check(PROFILE + "\u0000");
+        check(PROFILE.substring(0, PROFILE.length() - 1));
+        check(PROFILE.substring(0, PROFILE.length() - 1) + ",}");
+        check("{\"textures\":{\"SKIN\":{\"url\":\"a\"}},}");
+        check("{\"textures\":{\"SKIN\":{\"url\":\"a\"}} \"b\":1}");
+    }
+
+    @Test
+    void urlTypes() {
+        for (String url : new String[] {"\"a\"", "1", "-1.5e3", "true", "false", "null", "{}", "[]", "[\"a\"]"}) {
+            check("{\"textures\":{\"SKIN\":{\"url\":" + url + "}}}");
+            check("{\"textures\":{\"SKIN\":" + url + "}}");
+            check("{\"textures\":" + url + "}");
+            check(url);
+        }
+        check("{\"textures\":{\"SKIN\":{\"url\":01}}}");
+        check("{\"textures\":{\"SKIN\":{\"url\":1.}}}");
+        check("{\"textures\":{\"SKIN\":{\"url\":tru}}}");
+        check("{\"textures\":{\"SKIN\":{\"url\":\"a\"}},\"n\":-}");
+    }
+
+    @Test
+    void invalidBase64() {
+        String encoded = encode(PROFILE);
+        String unpadded = encoded.replace("=", "");
+        checkEncoded(encoded);
+        checkEncoded(unpadded);
+        checkEncoded(unpadded + "=");
+        checkEncoded(unpadded + "==");
+        checkEncoded(unpadded + "===");
+        checkEncoded(encoded + "A");
+        checkEncoded(encoded + "AAAA");
+        checkEncoded("=" + encoded);
+        checkEncoded(encoded.substring(1));
+        checkEncoded(encoded.substring(0, encoded.length() - 5));
+        checkEncoded(encoded.substring(0, 4 * (encoded.length() / 8)));
+        checkEncoded(encoded.replace('+', '-'));
+        checkEncoded(encoded.substring(0, 8) + "*" + encoded.substring(9));
+        checkEncoded(encoded.substring(0, 8) + "\u00e9" + encoded.substring(9));
+        checkEncoded("");
+        checkEncoded("A");
+        checkEncoded("AA");
+        checkEncoded("AA=");
+        checkEncoded("AA==");
+    }
+
+    @Test
+    void randomMutations() {
+        byte[] profile = PROFILE.getBytes(StandardCharsets.UTF_8);
+        byte[] replacements = "{}[]\":,\\ u0aSKINurltexture\u0080\u00ff".getBytes(StandardCharsets.ISO_8859_1);
+        Random random = new Random(0);
+        for (int i = 0; i < 50_000; i++) {
+            byte[] mutated = profile.clone();
+            for (int j = random.nextInt(3); j >= 0; j--) {
+                mutated[random.nextInt(mutated.length)] = replacements[random.nextInt(replacements.length)];
+            }
+            int length = random.nextInt(8) == 0 ? random.nextInt(mutated.length) : mutated.length;
+            checkEncoded(Base64.getEncoder().encodeToString(Arrays.copyOf(mutated, length)));
+        }
+    }
+
+    @Test
+    void decoder() {
+        char[] alphabet = "ABCXYZabcxyz0189+/=-_*\u00e9".toCharArray();
+        Random random = new Random(0);
+        byte[] decoded = new byte[32];
+        for (int i = 0; i < 100_000; i++) {
+            char[] chars = new char[random.nextInt(12)];
+            for (int j = 0; j < chars.length; j++) {
+                // Mostly base64 with an occasional padding or invalid character
+                chars[j] = alphabet[random.nextInt(8) == 0 ? random.nextInt(alphabet.length) : random.nextInt(16)];
+            }
+            String base64 = new String(chars);
+            byte[] expected;
+            try {
+                expected = Base64.getDecoder().decode(base64);
+            } catch (IllegalArgumentException e) {
+                expected = null;
+            }
+            int length = HeadValidator.decode(base64, decoded);
+            assertEquals(expected == null ? null : Arrays.toString(expected),
+                    length == -1 ? null : Arrays.toString(Arrays.copyOf(decoded, length)), () -> "Decoding " + base64);
+        }
+    }
+
+    @Test
+    void bufferReuse() {
+        // A long candidate grows the buffer, a short one after it must not read its leftover bytes
+        String padding = " ".repeat(4096);
+        check("{\"textures\":{\"SKIN\":{\"url\":\"a\"}}," + padding + "\"b\":1}");
+        check("{\"textures\":{\"SKIN\":{\"url\":\"a\"}}");
+        check(PROFILE + padding);
+        check("{}");
+    }
+
+    private static String encode(String json) {
+        return Base64.getEncoder().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void check(String json) {
+        checkEncoded(encode(json));
+    }
+
+    private static void checkEncoded(String head) {
+        assertEquals(validateWithTree(head), HeadValidator.validate(head), () -> "Validation of " + head);
+    }
+
+    /**
+     * The validation {@link HeadValidator} replaced
+     */
+    private static boolean validateWithTree(String head) {
+        try {
+            JsonNode node = MAPPER.readTree(Base64.getDecoder().decode(head));
+            if (!node.isObject()) {
+                return false;
+            }
+
+            JsonNode textures = node.get("textures");
+            if (textures == null || !textures.isObject()) {
+                return false;
+            }
+
+            JsonNode skin = textures.get("SKIN");
+            if (skin == null || !textures.isObject()) {
+                return false;
+            }
+
+            JsonNode url = skin.get("url");
+            return url != null && url.isTextual();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
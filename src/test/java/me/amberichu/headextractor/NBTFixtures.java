@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Builds player profiles and NBT payloads for tests.
+ */
+final class NBTFixtures {
+    private NBTFixtures() {
+    }
+
+    /**
+     * @param where Where the head is stored, so that each stored head is distinct
+     * @return A base64-encoded profile that ends in padding
+     */
+    static String head(String where) {
+        StringBuilder json = new StringBuilder("{\"textures\":{\"SKIN\":{\"url\":\"http://example.com/" + where
+                + "\"}}}");
+        while (json.length() % 3 == 0) {
+            json.append(' ');
+        }
+        return Base64.getEncoder().encodeToString(json.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    static String quoted(String where) {
+        return "\"" + head(where) + "\"";
+    }
+
+    @FunctionalInterface
+    interface Body {
+        void write() throws IOException;
+    }
+
+    @FunctionalInterface
+    interface RootBody {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    static byte[] root(RootBody body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(10);
+        out.writeUTF("");
+        body.write(out);
+        out.writeByte(0);
+        return bytes.toByteArray();
+    }
+
+    static void intTag(DataOutputStream out, String name, int value) throws IOException {
+        out.writeByte(3);
+        out.writeUTF(name);
+        out.writeInt(value);
+    }
+
+    static void string(DataOutputStream out, String name, String value) throws IOException {
+        out.writeByte(8);
+        out.writeUTF(name);
+        out.writeUTF(value);
+    }
+
+    static void compound(DataOutputStream out, String name, Body body) throws IOException {
+        out.writeByte(10);
+        out.writeUTF(name);
+        body.write();
+        out.writeByte(0);
+    }
+
+    /**
+     * Write a list holding a single compound
+     */
+    static void list(DataOutputStream out, String name, Body body) throws IOException {
+        out.writeByte(9);
+        out.writeUTF(name);
+        out.writeByte(10);
+        out.writeInt(1);
+        body.write();
+        out.writeByte(0);
+    }
+}
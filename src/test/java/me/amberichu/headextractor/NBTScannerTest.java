@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static me.amberichu.headextractor.NBTFixtures.compound;
+import static me.amberichu.headextractor.NBTFixtures.head;
+import static me.amberichu.headextractor.NBTFixtures.intTag;
+import static me.amberichu.headextractor.NBTFixtures.list;
+import static me.amberichu.headextractor.NBTFixtures.quoted;
+import static me.amberichu.headextractor.NBTFixtures.root;
+import static me.amberichu.headextractor.NBTFixtures.string;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks which subtrees the targeted traversal of {@link NBTScanner} scans.
+ */
+class NBTScannerTest {
+    @Test
+    void modernChunk() throws IOException {
+        byte[] chunk = root(out -> {
+            intTag(out, "DataVersion", 3700);
+            compound(out, "sections", () -> string(out, "Name", quoted("sections")));
+            list(out, "block_entities", () -> string(out, "Command", quoted("block_entities")));
+            string(out, "unknown", quoted("unknown"));
+        });
+        assertEquals(List.of(head("sections"), head("block_entities"), head("unknown")), scan(chunk, false));
+        assertEquals(List.of(head("block_entities")), scan(chunk, true));
+    }
+
+    @Test
+    void legacyChunk() throws IOException {
+        byte[] chunk = root(out -> {
+            compound(out, "Level", () -> {
+                list(out, "Sections", () -> string(out, "Name", quoted("Sections")));
+                list(out, "TileEntities", () -> string(out, "Command", quoted("TileEntities")));
+                list(out, "Entities", () -> string(out, "CustomName", quoted("Entities")));
+            });
+            string(out, "unknown", quoted("unknown"));
+        });
+        assertEquals(List.of(head("TileEntities"), head("Entities")), scan(chunk, true));
+    }
+
+    @Test
+    void playerData() throws IOException {
+        byte[] player = root(out -> {
+            list(out, "Inventory", () -> string(out, "id", quoted("Inventory")));
+            compound(out, "recipeBook", () -> string(out, "recipes", quoted("recipeBook")));
+            // The layout is only recognized once this key is reached
+            intTag(out, "playerGameType", 0);
+            list(out, "EnderItems", () -> string(out, "id", quoted("EnderItems")));
+        });
+        assertEquals(List.of(head("Inventory"), head("EnderItems")), scan(player, true));
+    }
+
+    @Test
+    void unknownLayout() throws IOException {
+        byte[] unknown = root(out -> {
+            intTag(out, "DataVersion", 3700);
+            string(out, "first", quoted("first"));
+            list(out, "Entities", () -> string(out, "CustomName", quoted("Entities")));
+            compound(out, "last", () -> string(out, "Name", quoted("last")));
+        });
+        // Scanned subtrees come first, the skipped ones are scanned at the end of the root
+        assertEquals(List.of(head("Entities"), head("first"), head("last")), scan(unknown, true));
+        assertEquals(List.of(head("first"), head("Entities"), head("last")), scan(unknown, false));
+    }
+
+    @Test
+    void streamedInput() throws IOException {
+        byte[] chunk = root(out -> {
+            compound(out, "sections", () -> string(out, "Name", quoted("sections")));
+            list(out, "block_entities", () -> string(out, "Command", quoted("block_entities")));
+        });
+        List<String> heads = new ArrayList<>();
+        ScanOptions options = ScanOptions.builder().targetedTraversal(true).build();
+        new NBTScanner(options, heads::add).scan(new DataInputStream(new ByteArrayInputStream(chunk)));
+        assertEquals(List.of(head("sections"), head("block_entities")), heads);
+    }
+
+    @Test
+    void nestingDepth() throws IOException {
+        // The root compound is the first level
+        int deepest = NBTScanner.MAX_DEPTH - 1;
+        for (boolean targeted : new boolean[] {false, true}) {
+            assertEquals(List.of(head("lists")), scan(nestedLists(deepest), targeted));
+            assertThrows(IOException.class, () -> scan(nestedLists(deepest + 1), targeted));
+            assertThrows(IOException.class, () -> scan(nestedLists(100_000), targeted));
+        }
+        // Skipped subtrees are limited the same way
+        assertEquals(List.of(), scan(nestedCompounds(deepest), true));
+        assertThrows(IOException.class, () -> scan(nestedCompounds(deepest + 1), true));
+        assertThrows(IOException.class, () -> scan(nestedCompounds(100_000), false));
+    }
+
+    /**
+     * @param depth The number of nested lists
+     * @return A root compound whose Inventory list holds a list of lists, the innermost holding a head
+     */
+    private static byte[] nestedLists(int depth) throws IOException {
+        return root(out -> {
+            out.writeByte(9);
+            out.writeUTF("Inventory");
+            for (int i = 1; i < depth; i++) {
+                out.writeByte(9);
+                out.writeInt(1);
+            }
+            out.writeByte(8);
+            out.writeInt(1);
+            out.writeUTF(quoted("lists"));
+        });
+    }
+
+    /**
+     * @param depth The number of nested compounds
+     * @return A root compound whose sections compound, skipped by the targeted traversal, holds nested compounds
+     */
+    private static byte[] nestedCompounds(int depth) throws IOException {
+        return root(out -> {
+            out.writeByte(10);
+            out.writeUTF("sections");
+            for (int i = 1; i < depth; i++) {
+                out.writeByte(10);
+                out.writeUTF("");
+            }
+            for (int i = 0; i < depth; i++) {
+                out.writeByte(0);
+            }
+        });
+    }
+
+    private static List<String> scan(byte[] nbt, boolean targeted) throws IOException {
+        List<String> heads = new ArrayList<>();
+        ScanOptions options = ScanOptions.builder().targetedTraversal(targeted).build();
+        ChunkInput input = new ChunkInput();
+        input.reset(nbt, nbt.length);
+        new NBTScanner(options, heads::add).scan(input);
+        assertEquals(nbt.length, input.position(), "Unread bytes");
+        return heads;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2022-2023 Amberichu (davchoo).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * @author Amberichu
+ */
+
+package me.amberichu.headextractor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
+import static me.amberichu.headextractor.NBTFixtures.head;
+import static me.amberichu.headextractor.NBTFixtures.quoted;
+import static me.amberichu.headextractor.NBTFixtures.root;
+import static me.amberichu.headextractor.NBTFixtures.string;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that a chunk {@link RegionFile} can't read, or whose payload can't be scanned, is skipped and reported as a
+ * {@link FailedChunk} while the other chunks of its region are still scanned.
+ * <p>
+ * Each region holds a head in chunk 0 at sector 2 and in chunk 2 at sector 3. Chunk 1 is broken, usually from sector
+ * 4, the last sector of the file.
+ */
+class RegionFileTest {
+    private static final int SECTOR_SIZE = RegionFile.SECTOR_SIZE;
+    private static final int BROKEN = 1;
+
+    @TempDir
+    Path world;
+
+    @Test
+    void offsetInHeader() throws IOException {
+        Path region = region(buffer -> location(buffer, BROKEN, 1, 1));
+        assertSkipped(region, BROKEN);
+    }
+
+    @Test
+    void sectorsPastEnd() throws IOException {
+        Path region = region(buffer -> location(buffer, BROKEN, 100, 1));
+        assertSkipped(region, BROKEN);
+    }
+
+    @Test
+    void zeroLength() throws IOException {
+        Path region = region(buffer -> {
+            location(buffer, BROKEN, 4, 1);
+            buffer.putInt(4 * SECTOR_SIZE, 0);
+        });
+        assertSkipped(region, BROKEN);
+    }
+
+    @Test
+    void lengthPastSectors() throws IOException {
+        // The chunk claims more bytes than its sector holds, and it is the last chunk of the file
+        Path region = region(buffer -> {
+            location(buffer, BROKEN, 4, 1);
+            buffer.putInt(4 * SECTOR_SIZE, 2 * SECTOR_SIZE).put(4 * SECTOR_SIZE + 4, (byte) 3);
+        });
+        assertSkipped(region, BROKEN);
+    }
+
+    @Test
+    void unknownCompressionType() throws IOException {
+        // The payload is readable as is, it must still not be scanned
+        Path region = region(buffer -> chunk(buffer, BROKEN, 4, 42, nbt("unknown")));
+        assertSkipped(region, BROKEN);
+    }
+
+    @Test
+    void malformedPayload() throws IOException {
+        Path region = region(buffer -> chunk(buffer, BROKEN, 4, 2, "not zlib".getBytes(StandardCharsets.US_ASCII)));
+        assertSkipped(region, BROKEN);
+    }
+
+    @Test
+    void missingOversizedChunk() throws IOException {
+        Path region = region(buffer -> chunk(buffer, BROKEN, 4, ExternalChunk.FLAG | 2, new byte[0]));
+        assertSkipped(region, BROKEN);
+    }
+
+    @Test
+    void malformedOversizedChunk() throws IOException {
+        Path region = region(buffer -> chunk(buffer, BROKEN, 4, ExternalChunk.FLAG | 2, new byte[0]));
+        Path external = ExternalChunk.path(region, BROKEN);
+        Files.write(external, "not zlib".getBytes(StandardCharsets.US_ASCII));
+        // The external file is scanned as its own task, its failure affects the whole file
+        assertSkipped(external, -1);
+    }
+
+    @Test
+    void cancellation() throws IOException {
+        Path region = region(buffer -> chunk(buffer, BROKEN, 4, 3, nbt("middle")));
+        List<Integer> visited = new ArrayList<>();
+        List<Integer> failed = new ArrayList<>();
+        FileSource.Factory sources = new FileSource.Factory(IOMode.READ, 0, new ExtractionStatistics());
+        try (FileSource source = sources.open(region)) {
+            RegionFile.Range range = new RegionFile.Range(region, 0, Long.MAX_VALUE, 3 * SECTOR_SIZE);
+            // Stopping the scan ends the read rather than failing each remaining chunk
+            assertThrows(CancellationException.class, () -> RegionFile.read(source, range, (index, chunk) -> {
+                visited.add(index);
+                throw new CancellationException();
+            }, (index, e) -> failed.add(index)));
+        }
+        assertEquals(List.of(0), visited);
+        assertEquals(List.of(), failed);
+    }
+
+    @FunctionalInterface
+    private interface Corruption {
+        void write(ByteBuffer region) throws IOException;
+    }
+
+    /**
+     * Write a region file of five sectors with a head in chunks 0 and 2
+     * @param corruption Writes the broken chunk 1
+     * @return The region file
+     */
+    private Path region(Corruption corruption) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(5 * SECTOR_SIZE);
+        chunk(buffer, 0, 2, 3, nbt("first"));
+        chunk(buffer, 2, 3, 3, nbt("last"));
+        corruption.write(buffer);
+        Path directory = Files.createDirectories(world.resolve("region"));
+        return Files.write(directory.resolve("r.0.0.mca"), buffer.array());
+    }
+
+    /**
+     * Extract the world and check that exactly the given chunk failed
+     */
+    private void assertSkipped(Path failedPath, int failedIndex) throws IOException {
+        ExtractionStatistics statistics = new ExtractionStatistics();
+        ScanOptions options = ScanOptions.builder().includeEntities(false).includePlayerData(false)
+                .includeDataPacks(false).statistics(statistics).build();
+        Set<String> heads;
+        try (HeadExtractor extractor = HeadExtractor.builder().parallelism(1).build()) {
+            heads = extractor.extract(Set.of(world), options);
+        }
+        assertEquals(Set.of(head("first"), head("last")), heads);
+        assertEquals(2, statistics.chunksScanned());
+        List<FailedChunk> failed = statistics.failedChunks();
+        assertEquals(1, failed.size(), () -> "Failed chunks " + failed);
+        assertEquals(failedPath, failed.get(0).path());
+        assertEquals(failedIndex, failed.get(0).index());
+    }
+
+    private static void location(ByteBuffer region, int index, int sector, int sectors) {
+        region.putInt(4 * index, sector << 8 | sectors);
+    }
+
+    /**
+     * Write a chunk into a single sector
+     */
+    private static void chunk(ByteBuffer region, int index, int sector, int compressionType, byte[] payload) {
+        location(region, index, sector, 1);
+        region.position(sector * SECTOR_SIZE);
+        region.putInt(payload.length + 1).put((byte) compressionType).put(payload);
+    }
+
+    /**
+     * @param where Where the head is stored, so that each stored head is distinct
+     * @return An uncompressed chunk holding a single head
+     */
+    private static byte[] nbt(String where) throws IOException {
+        return root(out -> string(out, "Command", quoted(where)));
+    }
+}